@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import simpleserver.Coordinate;
+
+/*
+ * Compares point queries on the segment tree (with the sorting and nesting
+ * DimensionAreaStorage used to do on top of it) with AreaIndex.
+ *
+ * Usage: ant bench, then java -cp bin:bin-bench simpleserver.config.xml.AreaBenchmark [areas...]
+ *
+ * Random areas are spread over a world that grows with their number, a
+ * quarter of them nested in another area. Both structures must return the
+ * same areas for every query, or the benchmark stops.
+ */
+public class AreaBenchmark {
+  private static final int[] DEFAULT_SIZES = { 10, 1000, 100000 };
+  private static final int QUERIES = 100000;
+  private static final int ROUNDS = 10;
+
+  public static void main(String[] args) {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+    for (int size : sizes) {
+      run(size);
+    }
+  }
+
+  private static void run(int size) {
+    Random random = new Random(size);
+    int world = (int) Math.sqrt(size) * 64 + 256;
+    List<Area> areas = generate(size, world, random);
+
+    long start = System.nanoTime();
+    SegmentTree<Area> tree = new SegmentTree<Area>(3);
+    for (Area area : areas) {
+      tree.add(new int[] { area.start.y(), area.start.x(), area.start.z() },
+               new int[] { area.end.y(), area.end.x(), area.end.z() },
+               area);
+    }
+    tree.build();
+    long treeBuild = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    AreaIndex index = new AreaIndex(areas);
+    long indexBuild = System.nanoTime() - start;
+
+    int[] points = new int[QUERIES * 3];
+    for (int i = 0; i < QUERIES; i++) {
+      points[i * 3] = random.nextInt(world) - world / 2;
+      points[i * 3 + 1] = random.nextInt(128);
+      points[i * 3 + 2] = random.nextInt(world) - world / 2;
+    }
+
+    AreaIndex.Buffer buffer = new AreaIndex.Buffer();
+    int found = 0;
+    for (int i = 0; i < QUERIES; i++) {
+      List<Area> expected = treeQuery(tree, points[i * 3], points[i * 3 + 1], points[i * 3 + 2]);
+      index.find(points[i * 3], points[i * 3 + 1], points[i * 3 + 2], buffer);
+      if (expected.size() != buffer.size()) {
+        throw new IllegalStateException("Results differ at query " + i);
+      }
+      for (int j = 0; j < buffer.size(); j++) {
+        if (expected.get(j) != buffer.get(j)) {
+          throw new IllegalStateException("Results differ at query " + i);
+        }
+      }
+      found += buffer.size();
+    }
+
+    // the first rounds only warm up the JIT
+    long treeTime = 0;
+    long indexTime = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      start = System.nanoTime();
+      for (int i = 0; i < QUERIES; i++) {
+        found += treeQuery(tree, points[i * 3], points[i * 3 + 1], points[i * 3 + 2]).size();
+      }
+      long time = System.nanoTime() - start;
+      if (round >= ROUNDS / 2) {
+        treeTime += time;
+      }
+
+      start = System.nanoTime();
+      for (int i = 0; i < QUERIES; i++) {
+        index.find(points[i * 3], points[i * 3 + 1], points[i * 3 + 2], buffer);
+        found += buffer.size();
+      }
+      time = System.nanoTime() - start;
+      if (round >= ROUNDS / 2) {
+        indexTime += time;
+      }
+    }
+
+    int measured = QUERIES * (ROUNDS - ROUNDS / 2);
+    System.out.println(String.format("%d areas (%d hits):", size, found));
+    System.out.println(String.format("  segment tree: build %.1f ms, query %.0f ns",
+                                     treeBuild / 1000000.0, treeTime / (double) measured));
+    System.out.println(String.format("  area index:   build %.1f ms, query %.0f ns",
+                                     indexBuild / 1000000.0, indexTime / (double) measured));
+  }
+
+  private static List<Area> generate(int size, int world, Random random) {
+    List<Area> areas = new ArrayList<Area>(size);
+    for (int i = 0; i < size; i++) {
+      Area parent = null;
+      int x;
+      int z;
+      int width = 8 + random.nextInt(120);
+      int length = 8 + random.nextInt(120);
+      if (i % 4 == 3) {
+        parent = areas.get(random.nextInt(areas.size()));
+        x = parent.start.x() + random.nextInt(Math.max(1, parent.end.x() - parent.start.x()));
+        z = parent.start.z() + random.nextInt(Math.max(1, parent.end.z() - parent.start.z()));
+        width /= 4;
+        length /= 4;
+      } else {
+        x = random.nextInt(world) - world / 2;
+        z = random.nextInt(world) - world / 2;
+      }
+      int y = random.nextInt(64);
+      Area area = new Area("area" + i, new Coordinate(x, (byte) y, z),
+                           new Coordinate(x + width, (byte) (y + 63), z + length));
+      area.priority = random.nextInt(3);
+      area.setInfo(i, parent == null ? 0 : parent.level + 1, parent);
+      areas.add(area);
+    }
+    return areas;
+  }
+
+  // what DimensionAreaStorage.get did before AreaIndex
+  private static List<Area> treeQuery(SegmentTree<Area> tree, int x, int y, int z) {
+    List<Area> areas = tree.get(y, x, z);
+    for (Area area : new ArrayList<Area>(areas)) {
+      Area parent = area;
+      while (parent.parent != null) {
+        areas.add(parent = parent.parent);
+      }
+    }
+    Collections.sort(areas);
+    LinkedList<Area> active = new LinkedList<Area>();
+    int level = 0;
+    for (Area area : areas) {
+      if (area.level != level) {
+        continue;
+      }
+      if (active.isEmpty() || active.getLast() == area.parent) {
+        active.add(area);
+        level++;
+      }
+    }
+    return active;
+  }
+}
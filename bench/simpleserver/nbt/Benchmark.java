@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.nbt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Measures how fast simpleserver.dat style files are loaded and saved.
+ *
+ * Usage: ant bench, then java -cp bin:bin-bench simpleserver.nbt.Benchmark [file] [rounds]
+ *
+ * Without a file a simpleserver.dat with 20000 players is generated. The file
+ * is read into memory first, so loading covers decompression and decoding but
+ * not the disk. Saving goes through save(String) to a temporary file, the one
+ * way to save that every build has. Only API that the builds before and after
+ * the NBT changes share is used, so compile and run it against both of them
+ * to compare.
+ */
+public class Benchmark {
+  private static final int PLAYERS = 20000;
+  private static final int DEFAULT_ROUNDS = 20;
+  private static final int BUFFER_SIZE = 16384;
+
+  public static void main(String[] args) throws Exception {
+    byte[] file;
+    if (args.length > 0) {
+      file = read(new File(args[0]));
+    } else {
+      file = generate(PLAYERS);
+    }
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+    NBTFile nbt = new GZipNBTFile(new ByteArrayInputStream(file));
+    int tags = count(nbt.root());
+    System.out.println(String.format("%d bytes compressed, %d bytes raw, %d tags",
+                                     file.length, rawSize(nbt), tags));
+
+    File target = temporaryFile();
+    try {
+      // warm up the JIT before timing anything
+      run(file, rounds, target, false);
+      run(file, rounds, target, true);
+    } finally {
+      target.delete();
+    }
+  }
+
+  private static void run(byte[] file, int rounds, File target, boolean print) throws Exception {
+    long loadTime = 0;
+    long saveTime = 0;
+    NBTFile nbt = null;
+    for (int i = 0; i < rounds; i++) {
+      long start = System.nanoTime();
+      nbt = new GZipNBTFile(new ByteArrayInputStream(file));
+      loadTime += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      nbt.save(target.getPath());
+      saveTime += System.nanoTime() - start;
+    }
+
+    if (print) {
+      report("load", file.length, rounds, loadTime);
+      report("save", file.length, rounds, saveTime);
+    }
+  }
+
+  private static void report(String what, int bytes, int rounds, long nanos) {
+    double millis = nanos / 1000000.0 / rounds;
+    System.out.println(String.format("%s: %.2f ms, %.1f MB/s compressed", what,
+                                     millis, bytes / 1024.0 / 1024 / (millis / 1000)));
+  }
+
+  private static int count(NBTag tag) {
+    int tags = 1;
+    if (tag instanceof NBTCompound) {
+      NBTCompound compound = (NBTCompound) tag;
+      for (String name : compound.names()) {
+        tags += count(compound.get(name));
+      }
+    } else if (tag instanceof NBTList) {
+      NBTList<?> list = (NBTList<?>) tag;
+      for (int i = 0; i < list.size(); i++) {
+        tags += count(list.get(i));
+      }
+    }
+    return tags;
+  }
+
+  private static int rawSize(NBTFile nbt) throws IOException {
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(raw);
+    nbt.root().save(out);
+    out.close();
+    return raw.size();
+  }
+
+  private static byte[] generate(int players) throws IOException {
+    GZipNBTFile nbt = new GZipNBTFile();
+    NBTCompound node = new NBTCompound("players");
+    for (int i = 0; i < players; i++) {
+      String name = "player" + i;
+      NBTCompound player = new NBTCompound(name);
+      player.put(new NBTString("FULL_NAME", "Player" + i));
+      player.put(new NBTString("RENAME_NAME", "Player" + i));
+      player.put(new NBTArray("PW_HASH", new byte[20]));
+
+      NBTCompound stats = new NBTCompound("stats");
+      stats.put(new NBTInt("PLAY_TIME", i));
+      stats.put(new NBTInt("BLOCKS_DESTROYED", i * 3));
+      stats.put(new NBTInt("BLOCKS_PLACED", i * 2));
+      player.put(stats);
+
+      if (i % 4 == 0) {
+        NBTCompound home = new NBTCompound("home");
+        home.put(new NBTDouble("x", i));
+        home.put(new NBTDouble("y", 64));
+        home.put(new NBTDouble("z", -i));
+        home.put(new NBTByte("dimension", (byte) 0));
+        home.put(new NBTFloat("yaw", 0));
+        home.put(new NBTFloat("pitch", 0));
+        home.put(new NBTByte("public", (byte) 0));
+        NBTList<NBTString> invites = new NBTList<NBTString>("invites", NBT.STRING);
+        invites.add(new NBTString("player" + (i + 1)));
+        invites.add(new NBTString("player" + (i + 2)));
+        home.put(invites);
+        player.put(home);
+      }
+      node.put(player);
+    }
+    nbt.root().put(node);
+
+    File target = temporaryFile();
+    try {
+      nbt.save(target.getPath());
+      return read(target);
+    } finally {
+      target.delete();
+    }
+  }
+
+  private static File temporaryFile() throws IOException {
+    File file = File.createTempFile("simpleserver", ".dat");
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static byte[] read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
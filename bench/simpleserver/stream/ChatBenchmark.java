@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Compares the regular expressions StreamTunnel used on chat from the server
+ * with ChatScanner.
+ *
+ * Usage: ant bench, then java -cp bin:bin-bench simpleserver.stream.ChatBenchmark [file] [rounds]
+ *
+ * The file holds one chat line per line, as recorded from a server. Without
+ * one a corpus of colored player chat, console chat, join notices and server
+ * messages is generated. Both must classify every line the same way, or the
+ * benchmark stops.
+ */
+public class ChatBenchmark {
+  private static final Pattern MESSAGE_PATTERN = Pattern.compile("^<([^>]+)> (.*)$");
+  private static final Pattern COLOR_PATTERN = Pattern.compile("\u00a7[0-9a-f]");
+  private static final Pattern JOIN_PATTERN = Pattern.compile("\u00a7.((\\d|\\w)*) (joined|left) the game.");
+  private static final String CONSOLE_CHAT_PATTERN = "\\(CONSOLE:.*\\)";
+
+  private static final int LINES = 10000;
+  private static final int DEFAULT_ROUNDS = 50;
+
+  public static void main(String[] args) throws IOException {
+    List<String> corpus;
+    if (args.length > 0) {
+      corpus = read(args[0]);
+    } else {
+      corpus = generate(LINES);
+    }
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+    String[] lines = corpus.toArray(new String[corpus.size()]);
+
+    ChatScanner scanner = new ChatScanner();
+    int[] kinds = new int[ChatScanner.Kind.values().length];
+    for (String line : lines) {
+      ChatScanner.Kind expected = classify(line);
+      ChatScanner.Kind kind = scanner.scan(line);
+      if (kind != expected) {
+        System.out.println(String.format("Mismatch: %s instead of %s for \"%s\"", kind,
+                                         expected, line));
+        return;
+      }
+      kinds[kind.ordinal()]++;
+    }
+    StringBuilder summary = new StringBuilder().append(lines.length).append(" lines");
+    for (ChatScanner.Kind kind : ChatScanner.Kind.values()) {
+      summary.append(", ").append(kinds[kind.ordinal()]).append(' ').append(kind);
+    }
+    System.out.println(summary);
+
+    // warm up the JIT before timing anything
+    run(lines, rounds, scanner, false);
+    run(lines, rounds, scanner, true);
+  }
+
+  private static void run(String[] lines, int rounds, ChatScanner scanner, boolean print) {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      for (String line : lines) {
+        sink += classify(line).ordinal();
+      }
+    }
+    long regexTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      for (String line : lines) {
+        sink += scanner.scan(line).ordinal();
+      }
+    }
+    long scanTime = System.nanoTime() - start;
+
+    if (print) {
+      long count = (long) lines.length * rounds;
+      System.out.println(String.format("regex: %.1f ns/line, scanner: %.1f ns/line (%d)",
+                                       (double) regexTime / count,
+                                       (double) scanTime / count, sink));
+    }
+  }
+
+  // what StreamTunnel used to do for every chat line
+  private static ChatScanner.Kind classify(String message) {
+    Matcher joinMatcher = JOIN_PATTERN.matcher(message);
+    if (joinMatcher.find()) {
+      return joinMatcher.group(3).equals("joined") ? ChatScanner.Kind.JOIN
+                                                   : ChatScanner.Kind.LEAVE;
+    }
+    String cleanMessage = COLOR_PATTERN.matcher(message).replaceAll("");
+    if (MESSAGE_PATTERN.matcher(cleanMessage).find()) {
+      return ChatScanner.Kind.PLAYER_CHAT;
+    } else if (cleanMessage.matches(CONSOLE_CHAT_PATTERN)) {
+      return ChatScanner.Kind.CONSOLE_CHAT;
+    }
+    return ChatScanner.Kind.OTHER;
+  }
+
+  private static List<String> generate(int lines) {
+    Random random = new Random(lines);
+    String[] words = { "hello", "anyone", "got", "some", "iron?", "brb", "lol",
+                       "where", "is", "spawn", "the", "nether", "portal", ":)" };
+    List<String> corpus = new ArrayList<String>(lines);
+    for (int i = 0; i < lines; i++) {
+      String name = "Player" + random.nextInt(100);
+      StringBuilder text = new StringBuilder();
+      for (int j = random.nextInt(12); j >= 0; j--) {
+        text.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      text.setLength(text.length() - 1);
+
+      int type = random.nextInt(20);
+      if (type < 12) {
+        corpus.add("<" + name + "> " + text);
+      } else if (type < 15) {
+        corpus.add("\u00a77<\u00a7a" + name + "\u00a77> \u00a7f" + text);
+      } else if (type < 16) {
+        corpus.add("\u00a7e" + name + (random.nextBoolean() ? " joined" : " left")
+            + " the game.");
+      } else if (type < 18) {
+        corpus.add("\u00a7d(CONSOLE: " + text + ")");
+      } else {
+        corpus.add("\u00a77" + text);
+      }
+    }
+    return corpus;
+  }
+
+  private static List<String> read(String file) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                     "UTF-8"));
+    try {
+      List<String> corpus = new ArrayList<String>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        corpus.add(line);
+      }
+      return corpus;
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -117,7 +117,6 @@ public class Authenticator {
     byte[] pwHash = generateHash(password, playerName);
     server.data.players.setPw(playerName, pwHash);
     server.data.players.setRealName(playerName);
-    server.data.save();
 
     if (server.options.getBoolean("enableCustAuthExport")) {
       Integer groupId = server.config.players.group(playerName);
@@ -137,7 +136,6 @@ public class Authenticator {
     if (passwordMatches(playerName, oldPassword)) {
       byte[] pwHash = generateHash(newPassword, playerName);
       server.data.players.setPw(playerName, pwHash);
-      server.data.save();
 
       if (server.options.getBoolean("enableCustAuthExport")) {
         server.custAuthExport.updatePw(playerName, pwHash);
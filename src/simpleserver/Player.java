@@ -22,9 +22,14 @@ package simpleserver;
 
 import static simpleserver.lang.Translations.t;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -44,9 +49,11 @@ import simpleserver.config.xml.CommandConfig;
 import simpleserver.config.xml.CommandConfig.Forwarding;
 import simpleserver.config.xml.Group;
 import simpleserver.config.xml.Permission;
+import simpleserver.config.xml.PlayerIds;
 import simpleserver.message.AbstractChat;
 import simpleserver.message.Chat;
 import simpleserver.message.GlobalChat;
+import simpleserver.stream.EncodedMessage;
 import simpleserver.stream.StreamTunnel;
 
 public class Player {
@@ -57,10 +64,15 @@ public class Player {
   private Socket intsocket;
   private StreamTunnel serverToClient;
   private StreamTunnel clientToServer;
-  private Watchdog watchdog;
+  private Thread watchdog;
 
   private String name = null;
   private String renameName = null;
+  private String lowercaseName = null;
+  private int nameId = -1;
+  // maintained by PlayerGrid, which keeps a disconnected player out
+  long gridCell = PlayerGrid.NO_CELL;
+  volatile boolean disconnected = false;
   private String connectionHash;
   private boolean closed = false;
   private boolean isKicked = false;
@@ -85,7 +97,7 @@ public class Player {
   private String lastCommand = "";
 
   private AbstractChat chatType;
-  private Queue<String> messages = new ConcurrentLinkedQueue<String>();
+  private Queue<EncodedMessage> messages = new ConcurrentLinkedQueue<EncodedMessage>();
   private Queue<String> forwardMessages = new ConcurrentLinkedQueue<String>();
   private Queue<PlayerVisitRequest> visitreqs = new ConcurrentLinkedQueue<PlayerVisitRequest>();
 
@@ -102,7 +114,11 @@ public class Player {
   private long lastTeleport;
   private short experienceLevel;
 
-  public Player(Socket inc, Server parent) {
+  /*
+   * received holds whatever was already read from the client socket; it is
+   * tunnelled to the server before the rest of the stream.
+   */
+  public Player(Socket inc, Server parent, byte[] received) {
     connected = System.currentTimeMillis();
     position = new Position();
     server = parent;
@@ -127,12 +143,10 @@ public class Player {
 
     try {
       InetAddress localAddress = InetAddress.getByName(Server.addressFactory.getNextAddress());
-      intsocket = new Socket(InetAddress.getByName(null),
-                             server.options.getInt("internalPort"),
-                             localAddress, 0);
+      intsocket = openInternalSocket(localAddress);
     } catch (Exception e) {
       try {
-        intsocket = new Socket(InetAddress.getByName(null), server.options.getInt("internalPort"));
+        intsocket = openInternalSocket(null);
       } catch (Exception E) {
         e.printStackTrace();
         if (server.config.properties.getBoolean("exitOnFailure")) {
@@ -146,11 +160,38 @@ public class Player {
       }
     }
 
-    watchdog = new Watchdog();
+    if (isRobot) {
+      server.addRobotPort(intsocket.getLocalPort());
+    }
+
+    if (server.tunnels != null) {
+      serverToClient = new StreamTunnel(true, this);
+      clientToServer = new StreamTunnel(false, this);
+      clientToServer.unread(received);
+      try {
+        server.tunnels.register(extsocket.getChannel(), intsocket.getChannel(),
+                                serverToClient, clientToServer, new Runnable() {
+                                  public void run() {
+                                    cleanup();
+                                  }
+                                });
+      } catch (IOException e) {
+        e.printStackTrace();
+        cleanup();
+      }
+      return;
+    }
+
+    watchdog = server.threads.newThread(new Watchdog(), "PlayerWatchdog");
     try {
       serverToClient = new StreamTunnel(intsocket.getInputStream(),
                                         extsocket.getOutputStream(), true, this);
-      clientToServer = new StreamTunnel(extsocket.getInputStream(),
+      InputStream clientInput = extsocket.getInputStream();
+      if (received.length > 0) {
+        clientInput = new SequenceInputStream(new ByteArrayInputStream(received),
+                                              clientInput);
+      }
+      clientToServer = new StreamTunnel(clientInput,
                                         intsocket.getOutputStream(), false,
                                         this);
     } catch (IOException e) {
@@ -159,14 +200,34 @@ public class Player {
       return;
     }
 
-    if (isRobot) {
-      server.addRobotPort(intsocket.getLocalPort());
-    }
     watchdog.start();
   }
 
+  private Socket openInternalSocket(InetAddress localAddress) throws IOException {
+    Socket socket;
+    if (server.tunnels != null) {
+      socket = SocketChannel.open().socket();
+    } else {
+      socket = new Socket();
+    }
+
+    try {
+      if (localAddress != null) {
+        socket.bind(new InetSocketAddress(localAddress, 0));
+      }
+      socket.connect(new InetSocketAddress(InetAddress.getByName(null),
+                                           server.options.getInt("internalPort")));
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+
   public boolean setName(String name) {
     renameName = server.data.players.getRenameName(name);
+    lowercaseName = renameName.toLowerCase();
+    nameId = PlayerIds.of(lowercaseName);
 
     name = name.trim();
     if (name.length() == 0 || this.name != null) {
@@ -193,7 +254,9 @@ public class Player {
     this.name = name;
     updateGroup();
 
-    watchdog.setName("PlayerWatchdog-" + name);
+    if (watchdog != null) {
+      watchdog.setName("PlayerWatchdog-" + name);
+    }
     server.connectionLog("player", extsocket, name);
 
     if (server.numPlayers() == 0) {
@@ -212,6 +275,15 @@ public class Player {
     return (original) ? name : renameName;
   }
 
+  public String getLowercaseName() {
+    return lowercaseName;
+  }
+
+  // the same for every player object with this name, see PlayerIds
+  public int getNameId() {
+    return nameId;
+  }
+
   public String getRealName() {
     return server.data.players.getRealName(name);
   }
@@ -308,6 +380,10 @@ public class Player {
   }
 
   public void addMessage(String msg) {
+    messages.add(EncodedMessage.encode(msg));
+  }
+
+  public void addMessage(EncodedMessage msg) {
     messages.add(msg);
   }
 
@@ -336,7 +412,7 @@ public class Player {
     return forwardMessages.remove();
   }
 
-  public String getMessage() {
+  public EncodedMessage getMessage() {
     return messages.remove();
   }
 
@@ -395,7 +471,9 @@ public class Player {
   }
 
   public void setEntityId(int readInt) {
+    int oldId = entityId;
     entityId = readInt;
+    server.playerList.updateEntityId(this, oldId);
   }
 
   public int getGroupId() {
@@ -430,6 +508,14 @@ public class Player {
     return extsocket.getInetAddress();
   }
 
+  public StreamTunnel serverTunnel() {
+    return serverToClient;
+  }
+
+  public StreamTunnel clientTunnel() {
+    return clientToServer;
+  }
+
   public boolean ignoresChestLocks() {
     return groupObject.ignoreChestLocks;
   }
@@ -541,7 +627,7 @@ public class Player {
 
     if (command instanceof ExternalCommand) {
       return "/" + originalName + " " + args;
-    } else if ((config != null && config.forwarding != Forwarding.NONE) || server.config.properties.getBoolean("forwardAllCommands")) {
+    } else if ((config != null && config.forwarding != Forwarding.NONE) || server.settings.forwardAllCommands) {
       return message;
     } else {
       return null;
@@ -649,7 +735,6 @@ public class Player {
 
     blocksPlaced = 0;
     blocksDestroyed = 0;
-    server.data.save();
 
     return stats;
   }
@@ -672,6 +757,10 @@ public class Player {
       clientToServer.stop();
     }
 
+    // set first, so a position packet still being handled cannot add it back
+    disconnected = true;
+    server.playerGrid.remove(this);
+
     if (name != null) {
       server.authenticator.unbanLogin(this);
       if (usedAuthenticator) {
@@ -691,17 +780,17 @@ public class Player {
       server.data.players.stats.add(this, StatField.PLAY_TIME, (int) (System.currentTimeMillis() - connected) / 1000 / 60);
       server.data.players.stats.add(this, StatField.BLOCKS_DESTROYED, blocksDestroyed);
       server.data.players.stats.add(this, StatField.BLOCKS_PLACED, blocksPlaced);
-      server.data.save();
 
       server.playerList.removePlayer(this);
-      name = renameName = null;
+      name = renameName = lowercaseName = null;
+      nameId = -1;
     }
   }
 
   private void cleanup() {
     if (!closed) {
       closed = true;
-      entityId = 0;
+      setEntityId(0);
 
       close();
 
@@ -731,8 +820,7 @@ public class Player {
     }
   }
 
-  private final class Watchdog extends Thread {
-    @Override
+  private final class Watchdog implements Runnable {
     public void run() {
       while (serverToClient.isAlive() || clientToServer.isAlive()) {
         if (!serverToClient.isActive() || !clientToServer.isActive()) {
@@ -786,6 +874,7 @@ public class Player {
 
   public void setDimension(Dimension dimension) {
     position.updateDimension(dimension);
+    server.playerGrid.update(this);
   }
 
   public Dimension getDimension() {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Online players by position, in square columns of 32 by 32 blocks per
+ * dimension. Players are moved when a position packet takes them into
+ * another cell; radius queries only look at the cells within reach. Cells
+ * are copy-on-write arrays, so queries never lock.
+ */
+public class PlayerGrid {
+  private static final int CELL_SHIFT = 5;
+  static final long NO_CELL = Long.MIN_VALUE;
+
+  private final ConcurrentMap<Long, Player[]> cells = new ConcurrentHashMap<Long, Player[]>();
+
+  public void update(Player player) {
+    Position position = player.position;
+    long cell = cell(position.dimension.ordinal(), cellOf(position.x), cellOf(position.z));
+    if (cell != player.gridCell) {
+      move(player, cell);
+    }
+  }
+
+  public void remove(Player player) {
+    move(player, NO_CELL);
+  }
+
+  private synchronized void move(Player player, long cell) {
+    if (player.disconnected) {
+      cell = NO_CELL;
+    }
+    if (player.gridCell == cell) {
+      return;
+    }
+    if (player.gridCell != NO_CELL) {
+      Player[] players = cells.get(player.gridCell);
+      if (players != null) {
+        Player[] remaining = without(players, player);
+        if (remaining.length == 0) {
+          cells.remove(player.gridCell);
+        } else {
+          cells.put(player.gridCell, remaining);
+        }
+      }
+    }
+    if (cell != NO_CELL) {
+      Player[] players = cells.get(cell);
+      cells.put(cell, with(players, player));
+    }
+    player.gridCell = cell;
+  }
+
+  /*
+   * Players in the same dimension less than radius blocks away from the
+   * given one, including that player.
+   */
+  public List<Player> near(Player player, double radius) {
+    Position position = player.position;
+    return near(position.dimension, position.x, position.y, position.z, radius);
+  }
+
+  public List<Player> near(Coordinate.Dimension dimension, double x, double y, double z,
+                           double radius) {
+    List<Player> near = new ArrayList<Player>();
+    if (radius <= 0) {
+      return near;
+    }
+    int minX = cellOf(x - radius);
+    int maxX = cellOf(x + radius);
+    int minZ = cellOf(z - radius);
+    int maxZ = cellOf(z + radius);
+    double squaredRadius = radius * radius;
+
+    if ((long) (maxX - minX + 1) * (maxZ - minZ + 1) > cells.size()) {
+      // the radius covers more cells than there are players to look at
+      for (Player[] players : cells.values()) {
+        addNear(near, players, dimension, x, y, z, squaredRadius);
+      }
+    } else {
+      int dimensionIndex = dimension.ordinal();
+      for (int cellX = minX; cellX <= maxX; cellX++) {
+        for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+          Player[] players = cells.get(cell(dimensionIndex, cellX, cellZ));
+          if (players != null) {
+            addNear(near, players, dimension, x, y, z, squaredRadius);
+          }
+        }
+      }
+    }
+    return near;
+  }
+
+  private static void addNear(List<Player> near, Player[] players, Coordinate.Dimension dimension,
+                              double x, double y, double z, double squaredRadius) {
+    for (Player player : players) {
+      Position position = player.position;
+      if (position.dimension != dimension) {
+        continue;
+      }
+      double dx = position.x - x;
+      double dy = position.y - y;
+      double dz = position.z - z;
+      if (dx * dx + dy * dy + dz * dz < squaredRadius) {
+        near.add(player);
+      }
+    }
+  }
+
+  private static int cellOf(double coordinate) {
+    return (int) Math.floor(coordinate) >> CELL_SHIFT;
+  }
+
+  private static long cell(int dimension, int x, int z) {
+    return (long) dimension << 56 | (x & 0xfffffffL) << 28 | (z & 0xfffffffL);
+  }
+
+  private static Player[] with(Player[] players, Player player) {
+    if (players == null) {
+      return new Player[] { player };
+    }
+    Player[] copy = new Player[players.length + 1];
+    System.arraycopy(players, 0, copy, 0, players.length);
+    copy[players.length] = player;
+    return copy;
+  }
+
+  private static Player[] without(Player[] players, Player player) {
+    for (int i = 0; i < players.length; i++) {
+      if (players[i] == player) {
+        Player[] copy = new Player[players.length - 1];
+        System.arraycopy(players, 0, copy, 0, i);
+        System.arraycopy(players, i + 1, copy, i, players.length - i - 1);
+        return copy;
+      }
+    }
+    return players;
+  }
+}
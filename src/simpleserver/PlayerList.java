@@ -22,20 +22,33 @@ package simpleserver;
 
 import static simpleserver.lang.Translations.t;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+/*
+ * Changes are synchronized; lookups never lock. Besides the players by name
+ * there is an index by entity id, and a snapshot (in join order, and sorted
+ * by name for prefix lookups) that is replaced whenever a player joins or
+ * leaves.
+ */
 public class PlayerList {
   private final Server server;
   private final ConcurrentMap<String, Player> players;
+  private final ConcurrentMap<Integer, Player> entityIds;
+  private volatile Snapshot snapshot;
 
   public PlayerList(Server server) {
     this.server = server;
     players = new ConcurrentHashMap<String, Player>();
+    entityIds = new ConcurrentHashMap<Integer, Player>();
+    snapshot = new Snapshot(new Player[0]);
   }
 
-  public synchronized Player[] getArray() {
-    return players.values().toArray(new Player[players.size()]);
+  // shared between callers, so it must not be modified
+  public Player[] getArray() {
+    return snapshot.players;
   }
 
   public int size() {
@@ -58,20 +71,24 @@ public class PlayerList {
   }
 
   public Player findPlayer(int entityId) {
-    for (Player p : players.values()) {
-      if (p.getEntityId() == entityId) {
-        return p;
-      }
-    }
-    return null;
+    return entityIds.get(entityId);
   }
 
+  // the player with this name, or else the first one (by name) it starts
   public Player findPlayer(String prefix) {
     prefix = prefix.toLowerCase();
-    for (String name : players.keySet()) {
-      if (name.startsWith(prefix)) {
-        return players.get(name);
-      }
+    Player player = players.get(prefix);
+    if (player != null) {
+      return player;
+    }
+
+    Snapshot current = snapshot;
+    int index = Arrays.binarySearch(current.names, prefix);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    if (index < current.names.length && current.names[index].startsWith(prefix)) {
+      return current.byName[index];
     }
     return null;
   }
@@ -80,14 +97,22 @@ public class PlayerList {
     return players.get(name.toLowerCase());
   }
 
+  public synchronized void updateEntityId(Player player, int oldId) {
+    entityIds.remove(oldId, player);
+    if (player.getEntityId() != 0 && players.get(player.getLowercaseName()) == player) {
+      entityIds.put(player.getEntityId(), player);
+    }
+  }
+
   public synchronized void removePlayer(Player player) {
-    players.remove(player.getName().toLowerCase());
+    remove(player);
+    updateSnapshot();
     notifyAll();
   }
 
   public synchronized void addPlayer(Player player) {
-    if (players.size() < server.config.properties.getInt("maxPlayers")) {
-      players.put(player.getName().toLowerCase(), player);
+    if (players.size() < server.settings.maxPlayers) {
+      add(player);
     } else {
       Player playerToKick = null;
       for (Player friend : players.values()) {
@@ -102,8 +127,54 @@ public class PlayerList {
         player.kick(t("Sorry, server is full!"));
       } else {
         playerToKick.kick(t("Sorry, making space for more senior member."));
-        players.remove(playerToKick.getName().toLowerCase());
-        players.put(player.getName().toLowerCase(), player);
+        remove(playerToKick);
+        add(player);
+      }
+    }
+    updateSnapshot();
+  }
+
+  private void add(Player player) {
+    players.put(player.getLowercaseName(), player);
+    if (player.getEntityId() != 0) {
+      entityIds.put(player.getEntityId(), player);
+    }
+  }
+
+  private void remove(Player player) {
+    players.remove(player.getLowercaseName(), player);
+    entityIds.remove(player.getEntityId(), player);
+  }
+
+  private void updateSnapshot() {
+    Player[] array = players.values().toArray(new Player[players.size()]);
+    Arrays.sort(array, new Comparator<Player>() {
+      public int compare(Player a, Player b) {
+        long difference = a.getConnectedAt() - b.getConnectedAt();
+        return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+      }
+    });
+    snapshot = new Snapshot(array);
+  }
+
+  private static final class Snapshot {
+    final Player[] players;
+    // lowercase names in order, and the players they belong to
+    final String[] names;
+    final Player[] byName;
+
+    Snapshot(Player[] players) {
+      this.players = players;
+      Player[] sorted = players.clone();
+      Arrays.sort(sorted, new Comparator<Player>() {
+        public int compare(Player a, Player b) {
+          return a.getLowercaseName().compareTo(b.getLowercaseName());
+        }
+      });
+      byName = sorted;
+      names = new String[sorted.length];
+      for (int i = 0; i < sorted.length; i++) {
+        names[i] = sorted[i].getLowercaseName();
       }
     }
   }
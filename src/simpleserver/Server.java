@@ -25,9 +25,11 @@ import static simpleserver.lang.Translations.t;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.security.SecureRandom;
 import java.util.LinkedList;
 import java.util.List;
@@ -47,6 +49,7 @@ import simpleserver.config.WhiteList;
 import simpleserver.config.data.GlobalData;
 import simpleserver.config.xml.Config;
 import simpleserver.config.xml.GlobalConfig;
+import simpleserver.config.xml.RuntimeSettings;
 import simpleserver.export.CustAuthExport;
 import simpleserver.lang.Translations;
 import simpleserver.log.AdminLog;
@@ -59,12 +62,17 @@ import simpleserver.minecraft.MinecraftWrapper;
 import simpleserver.nbt.WorldFile;
 import simpleserver.options.Options;
 import simpleserver.rcon.RconServer;
+import simpleserver.stream.EncodedMessage;
+import simpleserver.stream.TrafficStatistics;
+import simpleserver.stream.TunnelSelector;
 import simpleserver.telnet.TelnetServer;
 import simpleserver.thread.AutoBackup;
 import simpleserver.thread.AutoFreeSpaceChecker;
 import simpleserver.thread.AutoRestart;
 import simpleserver.thread.AutoRun;
 import simpleserver.thread.AutoSave;
+import simpleserver.thread.ConnectionThreads;
+import simpleserver.thread.PingResponder;
 import simpleserver.thread.RequestTracker;
 import simpleserver.thread.SystemInputQueue;
 
@@ -90,11 +98,13 @@ public class Server {
   private RobotList robots;
   public ReadFiles docs;
   public Config config;
+  public volatile RuntimeSettings settings;
   private GlobalConfig globalConfig;
 
   private SecureRandom random = new SecureRandom();
 
   public PlayerList playerList;
+  public PlayerGrid playerGrid;
   public Authenticator authenticator;
   private List<Resource> resources;
 
@@ -129,6 +139,10 @@ public class Server {
   public Time time;
   public BotController bots;
   public WorldFile world;
+  public TunnelSelector tunnels;
+  public ConnectionThreads threads;
+  public TrafficStatistics traffic;
+  private PingResponder pingResponder;
 
   public Server() {
     listener = new Listener();
@@ -241,6 +255,7 @@ public class Server {
 
     if (globalConfig.loadsuccess) {
       config = globalConfig.config;
+      settings = new RuntimeSettings(config.properties);
     } else {
       System.out.println("[SimpleServer] Syntax error in comfig.xml! Config was not reloaded.");
       return false;
@@ -265,6 +280,7 @@ public class Server {
   }
 
   public void saveConfig() {
+    config.permissionsChanged();
     globalConfig.save();
   }
 
@@ -298,13 +314,13 @@ public class Server {
 
   public int localChat(Player player, String msg) {
     int localPlayers = 0;
-    int radius = config.properties.getInt("localChatRadius");
-    for (Player friend : playerList.getArray()) {
-      if (friend.distanceTo(player) < radius) {
-        friend.addCaptionedMessage(t("%s says", player.getName()), msg);
-        if (player != friend) {
-          localPlayers++;
-        }
+    int radius = settings.localChatRadius;
+    EncodedMessage message = EncodedMessage.encode(String.format("%s%s: %s%s", Color.GRAY,
+        t("%s says", player.getName()), Color.WHITE, msg));
+    for (Player friend : playerGrid.near(player, radius)) {
+      friend.addMessage(message);
+      if (player != friend) {
+        localPlayers++;
       }
     }
     return localPlayers;
@@ -399,7 +415,7 @@ public class Server {
     resources.add(whitelist = new WhiteList());
     resources.add(mutelist = new MuteList());
     resources.add(giveAliasList = new GiveAliasList());
-    resources.add(data = new GlobalData());
+    resources.add(data = new GlobalData(options));
     resources.add(docs = new ReadFiles());
 
     time = new Time(this);
@@ -433,8 +449,16 @@ public class Server {
       System.exit(1);
     }
 
+    threads = new ConnectionThreads(options.getBoolean("useVirtualThreads"));
+    traffic = new TrafficStatistics();
+    if (options.getBoolean("answerPings")) {
+      pingResponder = new PingResponder(this);
+    } else {
+      pingResponder = null;
+    }
     authenticator = new Authenticator(this);
     playerList = new PlayerList(this);
+    playerGrid = new PlayerGrid();
     requestTracker = new RequestTracker(this);
     messager = new Messager(this);
 
@@ -458,6 +482,18 @@ public class Server {
       // Already on track to stop/restart.
     }
 
+    if (options.getBoolean("useNioTunnels")) {
+      try {
+        tunnels = new TunnelSelector(options.getInt("nioTunnelThreads"), threads);
+      } catch (IOException e) {
+        System.out.println("[SimpleServer] " + e);
+        System.out.println("[SimpleServer] Could not open selector, falling back to threaded tunnels");
+        tunnels = null;
+      }
+    } else {
+      tunnels = null;
+    }
+
     if (options.getBoolean("enableTelnet")) {
       telnetServer = new TelnetServer(this);
     }
@@ -512,6 +548,10 @@ public class Server {
     saveResources();
 
     playerList.waitUntilEmpty();
+    data.save();
+    if (tunnels != null) {
+      tunnels.stop();
+    }
     minecraft.stop();
     System.out.println("[SimpleServer] Server stopped successfully!");
     saveLock.release();
@@ -542,7 +582,12 @@ public class Server {
         }
 
         try {
-          socket = new ServerSocket(port, 0, address);
+          if (tunnels != null) {
+            socket = ServerSocketChannel.open().socket();
+            socket.bind(new InetSocketAddress(address, port));
+          } else {
+            socket = new ServerSocket(port, 0, address);
+          }
         } catch (IOException e) {
           System.out.println("[SimpleServer] " + e);
           System.out.println("[SimpleServer] Could not listen on port " + port
@@ -571,7 +616,11 @@ public class Server {
               }
               break;
             }
-            new Player(client, Server.this);
+            if (pingResponder != null) {
+              pingResponder.accept(client);
+            } else {
+              new Player(client, Server.this, new byte[0]);
+            }
           }
         } finally {
           try {
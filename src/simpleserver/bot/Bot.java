@@ -20,8 +20,6 @@
  */
 package simpleserver.bot;
 
-import static simpleserver.stream.StreamTunnel.ENCHANTABLE;
-
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
@@ -36,6 +34,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import simpleserver.Coordinate.Dimension;
 import simpleserver.Position;
 import simpleserver.Server;
+import simpleserver.stream.Packets;
 
 public class Bot {
   private static final int VERSION = 23;
@@ -56,6 +55,7 @@ public class Bot {
   protected BotController controller;
   protected boolean gotFirstPacket = false;
   private byte lastPacket;
+  private final Skipper skipper = new Skipper();
   private short health;
 
   public Bot(Server server, String name) {
@@ -78,7 +78,7 @@ public class Bot {
     writeLock = new ReentrantLock();
 
     connected = true;
-    new Tunneler().start();
+    server.threads.start(new Tunneler(), "BotTunneler-" + name);
 
     handshake();
   }
@@ -224,27 +224,6 @@ public class Bot {
       case 0x00: // Keep Alive
         keepAlive(in.readInt());
         break;
-      case 0x03: // Chat Message
-        readUTF16();
-        break;
-      case 0x04: // Time Update
-        in.readLong();
-        break;
-      case 0x05: // Player Inventory
-        in.readInt();
-        in.readShort();
-        in.readShort();
-        in.readShort();
-        break;
-      case 0x06: // Spawn Position
-        readNBytes(12);
-        break;
-      case 0x07: // Use Entity?
-        in.readInt();
-        in.readInt();
-        in.readBoolean();
-        in.readBoolean();
-        break;
       case 0x08: // Update Health
         health = in.readShort();
         in.readShort();
@@ -262,316 +241,15 @@ public class Bot {
         in.readLong();
         readUTF16(); // Added in 1.1, level type
         break;
-      case 0x0a: // Player
-        in.readByte();
-        break;
-      case 0x0c: // Player Look
-        readNBytes(9);
-        break;
-      case 0x0e: // Player Digging
-        in.readByte();
-        in.readInt();
-        in.readByte();
-        in.readInt();
-        in.readByte();
-        break;
-      case 0x0f: // Player Block Placement
-        in.readInt();
-        in.readByte();
-        in.readInt();
-        in.readByte();
-        readItem();
-        break;
-      case 0x10: // Holding Change
-        readNBytes(2);
-        break;
-      case 0x11: // Use Bed
-        readNBytes(14);
-        break;
-      case 0x12: // Animation
-        readNBytes(5);
-        break;
-      case 0x13: // ???
-        in.readInt();
-        in.readByte();
-        break;
-      case 0x14: // Named Entity Spawn
-        in.readInt();
-        readUTF16();
-        readNBytes(16);
-        break;
-      case 0x15: // Pickup spawn
-        readNBytes(24);
-        break;
-      case 0x16: // Collect Item
-        readNBytes(8);
-        break;
-      case 0x17: // Add Object/Vehicle
-        in.readInt();
-        in.readByte();
-        in.readInt();
-        in.readInt();
-        in.readInt();
-        int flag = in.readInt();
-        if (flag > 0) {
-          in.readShort();
-          in.readShort();
-          in.readShort();
-        }
-        break;
-      case 0x18: // Mob Spawn
-        in.readInt();
-        in.readByte();
-        in.readInt();
-        in.readInt();
-        in.readInt();
-        in.readByte();
-        in.readByte();
-        readUnknownBlob();
-        break;
-      case 0x19: // Painting
-        in.readInt();
-        readUTF16();
-        in.readInt();
-        in.readInt();
-        in.readInt();
-        in.readInt();
-        break;
-      case 0x1a:
-        in.readInt();
-        in.readInt();
-        in.readInt();
-        in.readInt();
-        in.readShort();
-        break;
-      case 0x1c: // Entity Velocity?
-        readNBytes(10);
-        break;
-      case 0x1d: // Destroy Entity
-        readNBytes(4);
-        break;
-      case 0x1e: // Entity
-        readNBytes(4);
-        break;
-      case 0x1f: // Entity Relative Move
-        readNBytes(7);
-        break;
-      case 0x20: // Entity Look
-        readNBytes(6);
-        break;
-      case 0x21: // Entity Look and Relative Move
-        readNBytes(9);
-        break;
-      case 0x22: // Entity Teleport
-        readNBytes(18);
-        break;
-      case 0x26: // Entity status?
-        readNBytes(5);
-        break;
-      case 0x27: // Attach Entity?
-        readNBytes(8);
-        break;
-      case 0x28: // Entity Metadata
-        in.readInt();
-        readUnknownBlob();
-        break;
-      case 0x29: // new in 1.8, add status effect (41)
-        in.readInt();
-        in.readByte();
-        in.readByte();
-        in.readShort();
-        break;
-      case 0x2a: // new in 1.8, remove status effect (42)
-        in.readInt();
-        in.readByte();
-        break;
-      case 0x2b: // experience
-        in.readFloat();
-        in.readShort();
-        in.readShort();
-        break;
-      case 0x32: // Pre-Chunk
-        readNBytes(9);
-        break;
-      case 0x33: // Map Chunk
-        readNBytes(13);
-        int chunkSize = in.readInt();
-        readNBytes(chunkSize);
-        break;
-      case 0x34: // Multi Block Change
-        readNBytes(8);
-        short arraySize = in.readShort();
-        readNBytes(arraySize * 4);
-        break;
-      case 0x35: // Block Change
-        in.readInt();
-        in.readByte();
-        in.readInt();
-        in.readByte();
-        in.readByte();
-        break;
-      case 0x36: // ???
-        readNBytes(12);
-        break;
-      case 0x3c: // Explosion
-        readNBytes(28);
-        int recordCount = in.readInt();
-        readNBytes(recordCount * 3);
-        break;
-      case 0x3d: // Unknown
-        in.readInt();
-        in.readInt();
-        in.readByte();
-        in.readInt();
-        in.readInt();
-        break;
-      case 0x46: // Invalid Bed
-        readNBytes(2);
-        break;
-      case 0x47: // Thunder
-        readNBytes(17);
-        break;
-      case 0x64: // Open window
-        in.readByte();
-        in.readByte();
-        readUTF16();
-        in.readByte();
-        break;
-      case 0x65:
-        in.readByte();
-        break;
-      case 0x66: // Inventory Item Move
-        in.readByte();
-        in.readShort();
-        in.readByte();
-        in.readShort();
-        in.readBoolean();
-        readItem();
-        break;
-      case 0x67: // Inventory Item Update
-        in.readByte();
-        in.readShort();
-        readItem();
-        break;
-      case 0x68: // Inventory
-        in.readByte();
-        short count = in.readShort();
-        for (int c = 0; c < count; ++c) {
-          readItem();
-        }
-        break;
-      case 0x69:
-        in.readByte();
-        in.readShort();
-        in.readShort();
-        break;
-      case 0x6a: // item transaction
-        in.readByte();
-        in.readShort();
-        in.readByte();
-        break;
-      case 0x6b: // creative item get
-        in.readShort();
-        readItem();
-        break;
-      case (byte) 0x6c:
-        readNBytes(2);
-        break;
-      case (byte) 0x82: // Update Sign
-        in.readInt();
-        in.readShort();
-        in.readInt();
-        readUTF16();
-        readUTF16();
-        readUTF16();
-        readUTF16();
-        break;
-      case (byte) 0x83: // Map data
-        in.readShort();
-        in.readShort();
-        byte length = in.readByte();
-        readNBytes(0xff & length);
-        break;
-      case (byte) 0xc8: // Statistic
-        readNBytes(5);
-        break;
-      case (byte) 0xc9: // User list
-        readUTF16();
-        in.readBoolean();
-        in.readShort();
-        break;
-      case (byte) 0xe6: // ModLoaderMP by SDK
-        in.readInt(); // mod
-        in.readInt(); // packet id
-        readNBytes(in.readInt() * 4); // ints
-        readNBytes(in.readInt() * 4); // floats
-        int sizeString = in.readInt(); // strings
-        for (int i = 0; i < sizeString; i++) {
-          readNBytes(in.readInt());
-        }
-        break;
-      case (byte) 0xfa: // Unknown, added in 1.1
-        readUTF16();
-        short arrayLength = in.readShort();
-        readNBytes(0xff & arrayLength);
-        break;
-      case (byte) 0xfe:
-        break;
       default:
-        error("Unable to handle packet 0x" + Integer.toHexString(packetId)
-            + " after 0x" + Integer.toHexString(lastPacket));
-    }
-    lastPacket = packetId;
-  }
-
-  private void readItem() throws IOException {
-    short id;
-    if ((id = in.readShort()) > 0) {
-      in.readByte();
-      in.readShort();
-      if (ENCHANTABLE.contains(id)) {
-        short length;
-        if ((length = in.readShort()) > 0) {
-          readNBytes(length);
+        if (Packets.isKnown(packetId)) {
+          Packets.walk(packetId, skipper);
+        } else {
+          error("Unable to handle packet 0x" + Integer.toHexString(packetId)
+              + " after 0x" + Integer.toHexString(lastPacket));
         }
-      }
-    }
-  }
-
-  private void readUnknownBlob() throws IOException {
-    byte unknown = in.readByte();
-
-    while (unknown != 0x7f) {
-      int type = (unknown & 0xE0) >> 5;
-
-      switch (type) {
-        case 0:
-          in.readByte();
-          break;
-        case 1:
-          in.readShort();
-          break;
-        case 2:
-          in.readInt();
-          break;
-        case 3:
-          in.readFloat();
-          break;
-        case 4:
-          readUTF16();
-          break;
-        case 5:
-          in.readShort();
-          in.readByte();
-          in.readShort();
-          break;
-        case 6:
-          in.readInt();
-          in.readInt();
-          in.readInt();
-      }
-      unknown = in.readByte();
     }
+    lastPacket = packetId;
   }
 
   protected String write(String s) throws IOException {
@@ -601,8 +279,13 @@ public class Bot {
   }
 
   private void readNBytes(int bytes) throws IOException {
-    for (int c = 0; c < bytes; ++c) {
-      in.readByte();
+    while (bytes > 0) {
+      int skipped = in.skipBytes(bytes);
+      if (skipped == 0) {
+        in.readByte(); // throws at the end of the stream
+        skipped = 1;
+      }
+      bytes -= skipped;
     }
   }
 
@@ -632,8 +315,25 @@ public class Bot {
     this.controller = controller;
   }
 
-  private final class Tunneler extends Thread {
-    @Override
+  private final class Skipper implements Packets.Cursor {
+    public byte readByte() throws IOException {
+      return in.readByte();
+    }
+
+    public short readShort() throws IOException {
+      return in.readShort();
+    }
+
+    public int readInt() throws IOException {
+      return in.readInt();
+    }
+
+    public void bytes(int count) throws IOException {
+      readNBytes(count);
+    }
+  }
+
+  private final class Tunneler implements Runnable {
     public void run() {
       while (connected) {
         try {
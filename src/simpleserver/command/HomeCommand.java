@@ -53,7 +53,6 @@ public class HomeCommand extends AbstractCommand implements PlayerCommand {
       }
 
       homes.set(playerName, homes.makeHomePoint(player.position));
-      player.getServer().data.save();
       player.addTMessage(Color.GRAY, "Your home has been saved.");
     } else if (command.equals("delete")) {
       if (homes.get(playerName) == null) {
@@ -62,7 +61,6 @@ public class HomeCommand extends AbstractCommand implements PlayerCommand {
       }
 
       homes.remove(playerName);
-      player.getServer().data.save();
       player.addTMessage(Color.GRAY, "Your home has been deleted.");
     } else if (command.equals("public")) {
       HomePoint home = homes.get(playerName);
@@ -76,7 +74,6 @@ public class HomeCommand extends AbstractCommand implements PlayerCommand {
       }
       home.isPublic = true;
       homes.set(playerName, home);
-      player.getServer().data.save();
       player.addTMessage(Color.GRAY, "Your home is now public!");
     } else if (command.equals("private")) {
       HomePoint home = homes.get(playerName);
@@ -90,7 +87,6 @@ public class HomeCommand extends AbstractCommand implements PlayerCommand {
       }
       home.isPublic = false;
       homes.set(playerName, home);
-      player.getServer().data.save();
       player.addTMessage(Color.GRAY, "Your home is now private!");
     } else if (command.equals("ilist")) {
       List<String> inviteList = new LinkedList<String>();
@@ -138,6 +134,7 @@ public class HomeCommand extends AbstractCommand implements PlayerCommand {
       }
       if (!home.invites.contains(new NBTString(iPlayer))) {
         home.invites.add(new NBTString(iPlayer));
+        homes.set(playerName, home);
         player.addTMessage(Color.GRAY, "You just invited %s.", iPlayer);
         if (onlineTarget != null) {
           onlineTarget.addTMessage(Color.GRAY, "You were just invited to visit %s's home.", player.getName());
@@ -159,6 +156,7 @@ public class HomeCommand extends AbstractCommand implements PlayerCommand {
       String uiPlayer = home.getInvitedPlayer(arguments[1]);
       if (home.invites.contains(new NBTString(uiPlayer))) {
         home.invites.remove(new NBTString(uiPlayer));
+        homes.set(playerName, home);
         player.addTMessage(Color.GRAY, "You just uninvited %s.", uiPlayer);
       } else {
         player.addTMessage(Color.GRAY, "Player wasn't invited.");
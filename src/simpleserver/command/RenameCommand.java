@@ -34,7 +34,6 @@ public class RenameCommand extends OnlinePlayerArgCommand {
     String renameName = extractArgument(message, 1);
 
     player.getServer().data.players.setRenameName(target, renameName);
-    player.getServer().data.save();
     player.addTMessage(Color.GRAY, "Player %s was successfully renamed to %s.", target.getName(), renameName);
 
     target.addTMessage(Color.GRAY, "Starting with your next login you're renamed to %s.", renameName);
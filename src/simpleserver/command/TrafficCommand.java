@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.command;
+
+import java.util.List;
+
+import simpleserver.Player;
+import simpleserver.Server;
+
+public class TrafficCommand extends AbstractCommand implements PlayerCommand,
+    ServerCommand {
+  public TrafficCommand() {
+    super("traffic [PLAYER]", "Display tunnelled traffic by packet type");
+  }
+
+  public void execute(Player player, String message) {
+    execute(player.getServer(), message, new PlayerFeedback(player));
+  }
+
+  public void execute(Server server, String message, CommandFeedback feedback) {
+    String[] arguments = extractArguments(message);
+    List<String> lines;
+    if (arguments.length > 0) {
+      Player target = server.playerList.findPlayer(arguments[0]);
+      if (target == null) {
+        feedback.send("Player not online (%s)", arguments[0]);
+        return;
+      }
+      lines = server.traffic.report(target);
+    } else {
+      lines = server.traffic.report();
+    }
+
+    for (String line : lines) {
+      feedback.send("%s", line);
+    }
+  }
+}
@@ -42,7 +42,6 @@ public class UnlockCommand extends AbstractCommand implements PlayerCommand {
       for (Chest chest : chests) {
         chest.unlock();
       }
-      player.getServer().data.save();
       if (chests.size() > 1) {
         player.addTMessage(Color.GRAY, "%d chests have been unlocked!", chests.size());
       } else {
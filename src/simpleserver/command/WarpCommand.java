@@ -55,7 +55,6 @@ public class WarpCommand extends AbstractCommand implements PlayerCommand {
         return;
       }
       warp.set(arguments[1], player.position);
-      player.getServer().data.save();
       player.addTMessage(Color.GRAY, "Waypoint added");
     } else if (command.equals("remove")) {
       if (arguments.length == 1) {
@@ -68,7 +67,6 @@ public class WarpCommand extends AbstractCommand implements PlayerCommand {
         return;
       }
       warp.remove(waypoint);
-      player.getServer().data.save();
       player.addTMessage(Color.GRAY, "Waypoint removed");
     } else {
       String waypoint = warp.getName(command);
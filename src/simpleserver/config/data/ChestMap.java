@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import simpleserver.Coordinate;
+import simpleserver.config.data.Chests.Chest;
+
+/*
+ * Chests by position. Positions are packed into a long (26 bits each for x
+ * and z, 8 for y, 4 for the dimension) and kept in an open addressing table,
+ * so a lookup neither allocates nor hashes a Coordinate, and a chest costs a
+ * single array slot instead of a map entry.
+ *
+ * Lookups never lock. A slot holds just the chest, whose key follows from its
+ * coordinate, so a reader cannot pair a key with the wrong chest. Removing a
+ * chest leaves a marker instead of shifting the following entries back, as a
+ * shift could move an entry behind a probe that is under way. Writers are
+ * serialized; they build a new table when chests and markers fill half of
+ * the current one, and swap it in once it is complete.
+ *
+ * Most lookups (digging and placing blocks) are for positions without a
+ * chest. A counter per chunk, hashed into a fixed table, lets those return
+ * before probing at all; a collision with a chunk that has chests only costs
+ * the usual probe.
+ */
+final class ChestMap {
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int CHUNK_SLOTS = 1 << 14;
+  private static final Object REMOVED = new Object();
+
+  private volatile AtomicReferenceArray<Object> table;
+  private int size;
+  private int removed;
+  private final AtomicIntegerArray chunks = new AtomicIntegerArray(CHUNK_SLOTS);
+
+  ChestMap() {
+    clear();
+  }
+
+  static long key(int x, int y, int z, int dimension) {
+    return (x & 0x3ffffffL) << 38 | (z & 0x3ffffffL) << 12 | (y & 0xffL) << 4 | (dimension & 0xfL);
+  }
+
+  static long key(Coordinate coordinate) {
+    return key(coordinate.x(), coordinate.y(), coordinate.z(), coordinate.dimension().ordinal());
+  }
+
+  Chest get(long key) {
+    if (chunks.get(chunkSlot(key)) == 0) {
+      return null;
+    }
+
+    AtomicReferenceArray<Object> table = this.table;
+    int mask = table.length() - 1;
+    for (int i = slot(key, mask);; i = (i + 1) & mask) {
+      Object entry = table.get(i);
+      if (entry == null) {
+        return null;
+      } else if (entry != REMOVED && key(((Chest) entry).coordinate) == key) {
+        return (Chest) entry;
+      }
+    }
+  }
+
+  synchronized Chest put(Chest chest) {
+    long key = key(chest.coordinate);
+    int mask = table.length() - 1;
+    int free = -1;
+    int i = slot(key, mask);
+    for (Object entry; (entry = table.get(i)) != null; i = (i + 1) & mask) {
+      if (entry == REMOVED) {
+        if (free == -1) {
+          free = i;
+        }
+      } else if (key(((Chest) entry).coordinate) == key) {
+        table.set(i, chest);
+        return (Chest) entry;
+      }
+    }
+
+    // count the chunk first, so a concurrent get never misses the chest
+    addToChunk(key, 1);
+    if (free == -1) {
+      free = i;
+    } else {
+      removed--;
+    }
+    table.set(free, chest);
+    if (++size + removed > table.length() / 2) {
+      // markers are dropped on the way, so only grow if chests need it
+      resize(size > table.length() / 4 ? table.length() * 2 : table.length());
+    }
+    return null;
+  }
+
+  synchronized Chest remove(long key) {
+    int mask = table.length() - 1;
+    for (int i = slot(key, mask);; i = (i + 1) & mask) {
+      Object entry = table.get(i);
+      if (entry == null) {
+        return null;
+      } else if (entry != REMOVED && key(((Chest) entry).coordinate) == key) {
+        table.set(i, REMOVED);
+        size--;
+        removed++;
+        addToChunk(key, -1);
+        return (Chest) entry;
+      }
+    }
+  }
+
+  synchronized List<Chest> values() {
+    List<Chest> chests = new ArrayList<Chest>(size);
+    for (int i = 0; i < table.length(); i++) {
+      Object entry = table.get(i);
+      if (entry != null && entry != REMOVED) {
+        chests.add((Chest) entry);
+      }
+    }
+    return chests;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized void clear() {
+    table = new AtomicReferenceArray<Object>(INITIAL_CAPACITY);
+    size = 0;
+    removed = 0;
+    for (int i = 0; i < CHUNK_SLOTS; i++) {
+      chunks.set(i, 0);
+    }
+  }
+
+  private void resize(int capacity) {
+    AtomicReferenceArray<Object> old = table;
+    AtomicReferenceArray<Object> next = new AtomicReferenceArray<Object>(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < old.length(); i++) {
+      Object entry = old.get(i);
+      if (entry != null && entry != REMOVED) {
+        int j = slot(key(((Chest) entry).coordinate), mask);
+        while (next.get(j) != null) {
+          j = (j + 1) & mask;
+        }
+        next.lazySet(j, entry);
+      }
+    }
+    // the volatile write publishes the filled table
+    table = next;
+    removed = 0;
+  }
+
+  private void addToChunk(long key, int delta) {
+    chunks.getAndAdd(chunkSlot(key), delta);
+  }
+
+  private static int chunkSlot(long key) {
+    // drop the low four bits of x and z, and y entirely
+    long chunk = (key >>> 42) << 26 | (key >>> 16 & 0x3fffffL) << 4 | (key & 0xfL);
+    return slot(chunk, CHUNK_SLOTS - 1);
+  }
+
+  private static int slot(long key, int mask) {
+    long hash = key * 0x9e3779b97f4a7c15L;
+    return (int) (hash >>> 32) & mask;
+  }
+}
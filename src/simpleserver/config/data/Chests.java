@@ -24,10 +24,10 @@ import static simpleserver.lang.Translations.t;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
 
 import simpleserver.Coordinate;
 import simpleserver.Player;
@@ -41,15 +41,27 @@ public class Chests {
   private final static String CHESTS = "chests";
 
   private NBTCompound root;
-  private final ConcurrentMap<Coordinate, Chest> locations;
-
-  public Chests() {
-    locations = new ConcurrentHashMap<Coordinate, Chest>();
+  private final ChestMap locations;
+  private final Journal journal;
+
+  // locked chests by owner and named chests by name, guarded by byOwner
+  private final Map<String, Set<Chest>> byOwner;
+  private final Map<String, Set<Chest>> byName;
+
+  Chests(Journal journal) {
+    locations = new ChestMap();
+    byOwner = new HashMap<String, Set<Chest>>();
+    byName = new HashMap<String, Set<Chest>>();
+    this.journal = journal;
   }
 
   void load(NBTCompound data) {
     root = data;
-    locations.clear();
+    synchronized (byOwner) {
+      locations.clear();
+      byOwner.clear();
+      byName.clear();
+    }
     NBTList<NBTCompound> node;
     if (data.containsKey(CHESTS)) {
       try {
@@ -67,26 +79,101 @@ public class Chests {
 
   private void loadChests(NBTList<NBTCompound> node) {
     for (int i = 0; i < node.size(); i++) {
-      NBTCompound tag = node.get(i);
-      Coordinate coord;
-      try {
-        coord = new Coordinate(tag.getCompound("coordinate"));
-      } catch (Exception e) {
-        System.out.println("Skipping corrupt chest");
-        continue;
-      }
-      Chest chest;
-      if (!tag.containsKey("owner")) {
-        chest = new Chest(coord);
+      restore(node.get(i));
+    }
+  }
+
+  // puts back a chest saved by tag(), replacing the one at its coordinate
+  void restore(NBTCompound tag) {
+    Coordinate coord;
+    try {
+      coord = new Coordinate(tag.getCompound("coordinate"));
+    } catch (Exception e) {
+      System.out.println("Skipping corrupt chest");
+      return;
+    }
+    Chest chest;
+    if (!tag.containsKey("owner")) {
+      chest = new Chest(coord);
+    } else {
+      String owner = tag.getString("owner").get();
+      if (!tag.containsKey("name")) {
+        chest = new Chest(owner, coord);
       } else {
-        String owner = tag.getString("owner").get();
-        if (!tag.containsKey("name")) {
-          chest = new Chest(owner, coord);
-        } else {
-          chest = new Chest(owner, coord, tag.getString("name").get());
-        }
+        chest = new Chest(owner, coord, tag.getString("name").get());
       }
-      locations.put(coord, chest);
+    }
+    add(chest);
+  }
+
+  void forget(Coordinate coordinate) {
+    remove(coordinate);
+  }
+
+  private void add(Chest chest) {
+    synchronized (byOwner) {
+      unindex(locations.put(chest));
+      index(chest);
+    }
+  }
+
+  private Chest remove(Coordinate coordinate) {
+    synchronized (byOwner) {
+      Chest chest = locations.remove(ChestMap.key(coordinate));
+      unindex(chest);
+      return chest;
+    }
+  }
+
+  // changes owner and name of a chest without letting the indexes go stale
+  private void set(Chest chest, String owner, String name) {
+    synchronized (byOwner) {
+      boolean indexed = locations.get(ChestMap.key(chest.coordinate)) == chest;
+      if (indexed) {
+        unindex(chest);
+      }
+      chest.owner = owner;
+      chest.name = name;
+      if (indexed) {
+        index(chest);
+      }
+    }
+  }
+
+  private void index(Chest chest) {
+    if (chest.owner() != null) {
+      add(byOwner, chest.owner(), chest);
+    }
+    if (chest.name() != null) {
+      add(byName, chest.name(), chest);
+    }
+  }
+
+  private void unindex(Chest chest) {
+    if (chest == null) {
+      return;
+    }
+    if (chest.owner() != null) {
+      remove(byOwner, chest.owner(), chest);
+    }
+    if (chest.name() != null) {
+      remove(byName, chest.name(), chest);
+    }
+  }
+
+  private static void add(Map<String, Set<Chest>> index, String key, Chest chest) {
+    Set<Chest> chests = index.get(key);
+    if (chests == null) {
+      chests = new HashSet<Chest>();
+      index.put(key, chests);
+    }
+    chests.add(chest);
+  }
+
+  private static void remove(Map<String, Set<Chest>> index, String key, Chest chest) {
+    Set<Chest> chests = index.get(key);
+    if (chests != null && chests.remove(chest) && chests.isEmpty()) {
+      index.remove(key);
     }
   }
 
@@ -96,30 +183,49 @@ public class Chests {
     for (Coordinate coord : old.locations.keySet()) {
       simpleserver.config.LegacyChestList.Chest chest = old.locations.get(coord);
       if (chest.isOpen()) {
-        locations.put(coord, new Chest(coord));
+        add(new Chest(coord));
       } else if (chest.name().equals("Locked chest") || chest.name().length() == 0) {
-        locations.put(coord, new Chest(chest.owner(), coord));
+        add(new Chest(chest.owner(), coord));
       } else {
-        locations.put(coord, new Chest(chest.owner(), coord, chest.name()));
+        add(new Chest(chest.owner(), coord, chest.name()));
       }
     }
     old.save();
   }
 
-  void save() {
+  // copies of every chest, taken while holding the journal
+  List<Chest> snapshot() {
+    List<Chest> chests = locations.values();
+    List<Chest> copies = new ArrayList<Chest>(chests.size());
+    for (Chest chest : chests) {
+      copies.add(new Chest(chest.owner(), chest.coordinate, chest.name()));
+    }
+    return copies;
+  }
+
+  // adds the chests of a snapshot to simpleserver.dat, outside of any lock
+  void save(NBTCompound data, List<Chest> chests) {
     NBTList<NBTCompound> node = new NBTList<NBTCompound>(CHESTS, NBT.COMPOUND);
-    for (Chest chest : locations.values()) {
-      NBTCompound tag = new NBTCompound();
-      tag.put(chest.coordinate.tag());
-      if (!chest.isOpen()) {
-        tag.put(new NBTString("owner", chest.owner.toLowerCase()));
-        if (chest.name != null) {
-          tag.put(new NBTString("name", chest.name));
-        }
+    for (Chest chest : chests) {
+      node.add(tag(chest));
+    }
+    data.put(node);
+  }
+
+  private NBTCompound tag(Chest chest) {
+    NBTCompound tag = new NBTCompound();
+    tag.put(chest.coordinate.tag());
+    if (!chest.isOpen()) {
+      tag.put(new NBTString("owner", chest.owner().toLowerCase()));
+      if (chest.name() != null) {
+        tag.put(new NBTString("name", chest.name()));
       }
-      node.add(tag);
     }
-    root.put(node);
+    return tag;
+  }
+
+  private void record(Chest chest) {
+    journal.chest(tag(chest));
   }
 
   void freeMemory() {
@@ -129,57 +235,68 @@ public class Chests {
   }
 
   public Chest get(Coordinate coordinate) {
-    if (isChest(coordinate)) {
-      return locations.get(coordinate);
-    } else {
-      return null;
-    }
+    return locations.get(ChestMap.key(coordinate));
   }
 
   public boolean isLocked(Coordinate coordinate) {
-    return isChest(coordinate) && !get(coordinate).isOpen();
+    Chest chest = get(coordinate);
+    return chest != null && !chest.isOpen();
   }
 
   public void releaseLock(Coordinate coordinate) {
-    locations.remove(coordinate);
+    synchronized (journal) {
+      if (remove(coordinate) != null) {
+        journal.releaseChest(coordinate);
+      }
+    }
   }
 
   public boolean isChest(Coordinate coordinate) {
-    return locations.containsKey(coordinate);
+    return get(coordinate) != null;
   }
 
   public Chest adjacentChest(Coordinate coordinate) {
-    Chest chest = get(coordinate.add(1, 0, 0));
+    int x = coordinate.x();
+    int y = coordinate.y();
+    int z = coordinate.z();
+    int dimension = coordinate.dimension().ordinal();
+
+    Chest chest = locations.get(ChestMap.key(x + 1, y, z, dimension));
     if (chest == null) {
-      chest = get(coordinate.add(-1, 0, 0));
+      chest = locations.get(ChestMap.key(x - 1, y, z, dimension));
     }
     if (chest == null) {
-      chest = get(coordinate.add(0, 0, 1));
+      chest = locations.get(ChestMap.key(x, y, z + 1, dimension));
     }
     if (chest == null) {
-      chest = get(coordinate.add(0, 0, -1));
+      chest = locations.get(ChestMap.key(x, y, z - 1, dimension));
     }
     return chest;
   }
 
   public boolean canOpen(Player player, Coordinate coordinate) {
-    return !isLocked(coordinate) || get(coordinate).ownedBy(player);
+    Chest chest = get(coordinate);
+    return chest == null || chest.isOpen() || chest.ownedBy(player);
   }
 
   public void unlock(Coordinate coordinate) {
-    if (isChest(coordinate)) {
-      get(coordinate).unlock();
-      Chest adjacent = adjacentChest(coordinate);
-      if (adjacent != null) {
-        adjacent.unlock();
+    synchronized (journal) {
+      Chest chest = get(coordinate);
+      if (chest != null) {
+        chest.unlock();
+        Chest adjacent = adjacentChest(coordinate);
+        if (adjacent != null) {
+          adjacent.unlock();
+        }
       }
     }
   }
 
   public String chestName(Coordinate coordinate) {
-    if (isLocked(coordinate)) {
-      if (get(coordinate).name != null) {
-        return get(coordinate).name;
+    Chest chest = get(coordinate);
+    if (chest != null && !chest.isOpen()) {
+      if (chest.name() != null) {
+        return chest.name();
       } else {
         return t("Locked Chest");
       }
@@ -189,31 +306,41 @@ public class Chests {
   }
 
   public void giveLock(String owner, Coordinate coordinate, String name) {
-    if (isChest(coordinate)) {
+    synchronized (journal) {
       Chest chest = get(coordinate);
-      chest.name = name;
-      chest.owner = owner;
-    } else {
-      locations.put(coordinate, new Chest(owner, coordinate, name));
+      if (chest != null) {
+        set(chest, owner, name);
+      } else {
+        chest = new Chest(owner, coordinate, name);
+        add(chest);
+      }
+      record(chest);
     }
   }
 
   public void giveLock(Player player, Coordinate coordinate, String name) {
-    giveLock(player.getName().toLowerCase(), coordinate, name);
+    giveLock(player.getLowercaseName(), coordinate, name);
   }
 
   public void addOpenChest(Coordinate coordinate) {
-    locations.put(coordinate, new Chest(coordinate));
+    synchronized (journal) {
+      Chest chest = new Chest(coordinate);
+      add(chest);
+      record(chest);
+    }
   }
 
   public Map<String, Integer> chestList(Player player) {
     Map<String, Integer> list = new HashMap<String, Integer>();
-    for (Chest chest : locations.values()) {
-      if (chest.ownedBy(player)) {
-        if (list.containsKey(chest.name)) {
-          list.put(chest.name, list.get(chest.name) + 1);
-        } else {
-          list.put(chest.name, 1);
+    synchronized (byOwner) {
+      Set<Chest> chests = byOwner.get(player.getLowercaseName());
+      if (chests != null) {
+        for (Chest chest : chests) {
+          if (list.containsKey(chest.name())) {
+            list.put(chest.name(), list.get(chest.name()) + 1);
+          } else {
+            list.put(chest.name(), 1);
+          }
         }
       }
     }
@@ -224,20 +351,25 @@ public class Chests {
     return list;
   }
 
+  public int chestCount(Player player) {
+    synchronized (byOwner) {
+      Set<Chest> chests = byOwner.get(player.getLowercaseName());
+      return chests == null ? 0 : chests.size();
+    }
+  }
+
   public List<Chest> getChestsByName(String name) {
-    List<Chest> chests = new ArrayList<Chest>();
-    for (Chest chest : locations.values()) {
-      if (chest.name != null && chest.name.equals(name)) {
-        chests.add(chest);
-      }
+    synchronized (byOwner) {
+      Set<Chest> chests = byName.get(name);
+      return chests == null ? new ArrayList<Chest>() : new ArrayList<Chest>(chests);
     }
-    return chests;
   }
 
-  public static final class Chest {
-    public String owner;
+  public final class Chest {
     public final Coordinate coordinate;
-    public String name;
+    // changed through set(), but read without a lock
+    private volatile String owner;
+    private volatile String name;
 
     private Chest(String player, Coordinate coordinate, String name) {
       owner = player;
@@ -254,21 +386,34 @@ public class Chests {
       this.coordinate = coordinate;
     }
 
+    public String owner() {
+      return owner;
+    }
+
+    public String name() {
+      return name;
+    }
+
     public boolean isOpen() {
       return owner == null;
     }
 
     public void lock(Player player) {
-      owner = player.getName().toLowerCase();
+      synchronized (journal) {
+        set(this, player.getLowercaseName(), name);
+        record(this);
+      }
     }
 
     public void unlock() {
-      owner = null;
-      name = null;
+      synchronized (journal) {
+        set(this, null, null);
+        record(this);
+      }
     }
 
     public boolean ownedBy(Player player) {
-      return owner != null && owner.equals(player.getName().toLowerCase());
+      return owner != null && owner.equals(player.getLowercaseName());
     }
   }
 }
@@ -20,16 +20,24 @@
  */
 package simpleserver.config.data;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import simpleserver.Resource;
+import simpleserver.config.data.Chests.Chest;
 import simpleserver.nbt.GZipNBTFile;
+import simpleserver.nbt.NBTCompound;
 import simpleserver.nbt.NBTInt;
+import simpleserver.options.Options;
 import simpleserver.thread.AutoBackup;
 
 public class GlobalData implements Resource {
@@ -38,21 +46,36 @@ public class GlobalData implements Resource {
   private final static String BACKUP_FOLDER = "config";
   private final static String PATH = FOLDER + File.separator + FILENAME;
   private final static String BACKUP_PATH = BACKUP_FOLDER + File.separator + FILENAME;
+  // changes are written once nothing changed for SAVE_DELAY, but never later
+  // than MAXIMUM_SAVE_DELAY after the first unsaved one
+  private final static long SAVE_DELAY = 2000;
+  private final static long MAXIMUM_SAVE_DELAY = 10000;
+  private final static int BUFFER_SIZE = 16384;
 
   GZipNBTFile nbt;
+  private final Journal journal;
+  private final Options options;
   public Warp warp;
   public PlayerData players;
   public Chests chests;
 
-  public GlobalData() {
-    warp = new Warp();
-    players = new PlayerData();
-    chests = new Chests();
+  private final Object writeLock = new Object();
+  private Saver saver;
+  private boolean dirty;
+  private long firstChange;
+  private long lastChange;
+
+  public GlobalData(Options options) {
+    this.options = options;
+    journal = new Journal(this);
+    warp = new Warp(journal);
+    players = new PlayerData(journal);
+    chests = new Chests(journal);
   }
 
   public void load() {
     try {
-      nbt = new GZipNBTFile(PATH);
+      nbt = new GZipNBTFile(PATH, true);
     } catch (FileNotFoundException e) {
       System.out.println("simpleserver.dat is missing. Generating empty NBT file.");
       nbt = new GZipNBTFile();
@@ -88,21 +111,158 @@ public class GlobalData implements Resource {
     }
 
     warp.load(nbt.root());
-    players.load(nbt.root());
+    players.load(nbt.root(), options.getBoolean("playerDataShards"),
+                 options.getInt("playerDataCacheSize"));
     chests.load(nbt.root());
+    journal.replay(nbt.root(), chests, players);
 
     save();
 
     chests.freeMemory();
   }
 
+  /*
+   * Writes simpleserver.dat right away and empties the journal. The data
+   * classes journal their own changes, holding the journal while they make
+   * them; use changed() after modifications that bypass them.
+   */
   public void save() {
-    chests.save();
+    synchronized (this) {
+      dirty = false;
+      notifyAll();
+    }
+    write();
+  }
+
+  // schedules a save on the background thread, which also compacts the journal
+  public synchronized void changed() {
+    long now = System.currentTimeMillis();
+    if (!dirty) {
+      dirty = true;
+      firstChange = now;
+    }
+    lastChange = now;
+
+    if (saver == null) {
+      saver = new Saver();
+      saver.setName("GlobalDataSaver");
+      saver.setDaemon(true);
+      saver.start();
+    }
+    notifyAll();
+  }
+
+  /*
+   * The snapshot is taken while holding the journal, which every change to
+   * the data also holds, so it never sees half a change and everything in the
+   * rotated journal is part of it. It only copies: chests and the player
+   * index as plain objects, players that changed since the last snapshot as
+   * their encoding, the rest of simpleserver.dat (mostly warps) as its
+   * encoding. The tree is built and encoded, compressed and written after.
+   */
+  private void write() {
+    synchronized (writeLock) {
+      String name;
+      byte[] rest;
+      List<Chest> chestList;
+      PlayerData.Snapshot playerSnapshot;
+      synchronized (journal) {
+        journal.rotate();
+        try {
+          name = nbt.root().name() == null ? "" : nbt.root().name().get();
+          rest = encodeRest();
+          chestList = chests.snapshot();
+          playerSnapshot = players.snapshot();
+        } catch (IOException e) {
+          failed(e);
+          return;
+        }
+      }
+
+      byte[] data;
+      try {
+        NBTCompound root = NBTCompound.encoded(name, rest);
+        chests.save(root, chestList);
+        players.save(root, playerSnapshot);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        root.write(out);
+        out.flush();
+        data = buffer.toByteArray();
+      } catch (IOException e) {
+        failed(e);
+        return;
+      }
+
+      if (!players.write(playerSnapshot)) {
+        failed(new IOException("Could not write all player files"));
+        return;
+      }
+      try {
+        writeCompressed(new File(PATH), data);
+        journal.compacted();
+      } catch (IOException e) {
+        failed(e);
+      }
+    }
+  }
+
+  // the parts of simpleserver.dat that are kept as they are, minus the players
+  private byte[] encodeRest() throws IOException {
+    NBTCompound rest = new NBTCompound();
+    for (String tag : nbt.root().names()) {
+      if (!tag.equals(PlayerData.PLAYERS)) {
+        rest.put(nbt.root().get(tag));
+      }
+    }
+    return rest.encodedChildren();
+  }
 
+  // replaces the file with the compressed data, synced to disk before the rename
+  static void writeCompressed(File target, byte[] data) throws IOException {
+    File temporary = new File(target.getPath() + ".tmp");
+    FileOutputStream file = new FileOutputStream(temporary);
     try {
-      nbt.save(PATH);
-    } catch (IOException e) {
-      System.out.println("[ERROR] Writing simpleserver.dat failed");
+      GZIPOutputStream out = new GZIPOutputStream(file, BUFFER_SIZE);
+      out.write(data);
+      out.finish();
+      file.getFD().sync();
+      out.close();
+    } finally {
+      file.close();
+    }
+
+    if (!temporary.renameTo(target)) {
+      // Windows won't rename over an existing file
+      target.delete();
+      if (!temporary.renameTo(target)) {
+        throw new IOException("Could not replace " + target);
+      }
+    }
+  }
+
+  // the rotated journal still holds the changes, try again later
+  private void failed(IOException e) {
+    System.out.println("[ERROR] Writing simpleserver.dat failed: " + e.getMessage());
+    System.out.println("[ERROR] Changes are kept in simpleserver.journal until it succeeds");
+    changed();
+  }
+
+  // blocks until there are changes that are due to be written
+  private synchronized void awaitChanges() throws InterruptedException {
+    while (true) {
+      if (!dirty) {
+        wait();
+        continue;
+      }
+
+      long due = Math.min(lastChange + SAVE_DELAY, firstChange + MAXIMUM_SAVE_DELAY);
+      long wait = due - System.currentTimeMillis();
+      if (wait <= 0) {
+        dirty = false;
+        return;
+      }
+      wait(wait);
     }
   }
 
@@ -115,12 +275,31 @@ public class GlobalData implements Resource {
   }
 
   public void setFreezeTime(int time) {
-    nbt.root().put(new NBTInt("freezeTime", time));
-    save();
+    NBTInt tag = new NBTInt("freezeTime", time);
+    synchronized (journal) {
+      nbt.root().put(tag);
+      journal.put(tag);
+    }
   }
 
   public void unsetFreezeTime() {
-    nbt.root().remove("freezeTime");
-    save();
+    synchronized (journal) {
+      nbt.root().remove("freezeTime");
+      journal.remove("freezeTime");
+    }
+  }
+
+  private final class Saver extends Thread {
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          awaitChanges();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        write();
+      }
+    }
   }
 }
@@ -34,7 +34,7 @@ import simpleserver.nbt.NBTList;
 import simpleserver.nbt.NBTString;
 
 public class Homes {
-  private final static String HOME = "home";
+  final static String HOME = "home";
 
   private final PlayerData playerData;
 
@@ -43,51 +43,49 @@ public class Homes {
   }
 
   public HomePoint get(String playerName) {
-    NBTCompound player = playerData.get(playerName);
-    if (player.containsKey(HOME)) {
+    NBTCompound player = playerData.find(playerName);
+    if (player != null && player.containsKey(HOME)) {
       return new HomePoint(player.getCompound(HOME));
     }
     return null;
   }
 
   public Set<String> getHomesPlayerInvitedTo(String playerName) {
-    Set<String> invitedHomes = new HashSet<String>();
-    for (String name : playerData.names()) {
-      NBTCompound player = playerData.get(name);
-      if (player.containsKey(HOME)) {
-        HomePoint home = new HomePoint(player.getCompound(HOME));
-        if (home.invites.contains(new NBTString(playerName))) {
-          invitedHomes.add(name);
-        }
-      }
-    }
-    return invitedHomes;
+    return playerData.index().invitations(playerName);
   }
 
   public void getVisitableHomes(String playerName, List<String> invitedHomes, List<String> publicHomes) {
-    for (String name : playerData.names()) {
-      NBTCompound player = playerData.get(name);
-      if (player.containsKey(HOME)) {
-        HomePoint home = new HomePoint(player.getCompound(HOME));
-        if (home.isPublic) {
-          publicHomes.add(name);
-        } else if (home.invites.contains(new NBTString(playerName)) || name.equals(playerName.toLowerCase())) {
-          invitedHomes.add(name);
-        }
+    PlayerIndex index = playerData.index();
+    Set<String> publicOwners = index.publicHomes();
+    publicHomes.addAll(publicOwners);
+    for (String name : index.invitations(playerName)) {
+      if (!publicOwners.contains(name)) {
+        invitedHomes.add(name);
       }
     }
+    String own = playerName.toLowerCase();
+    if (index.hasHome(own) && !publicOwners.contains(own) && !invitedHomes.contains(own)) {
+      invitedHomes.add(own);
+    }
   }
 
   public void remove(String playerName) {
-    NBTCompound player = playerData.get(playerName);
-    if (player.containsKey(HOME)) {
-      player.remove(HOME);
+    synchronized (playerData.journal()) {
+      NBTCompound player = playerData.find(playerName);
+      if (player != null && player.containsKey(HOME)) {
+        player.remove(HOME);
+        playerData.removed(playerName, player, HOME);
+      }
     }
   }
 
   public void set(String playerName, HomePoint homePoint) {
-    NBTCompound player = playerData.get(playerName);
-    player.put(homePoint.tag());
+    synchronized (playerData.journal()) {
+      NBTCompound player = playerData.get(playerName);
+      NBTCompound tag = homePoint.tag();
+      player.put(tag);
+      playerData.changed(playerName, player, tag);
+    }
   }
 
   public HomePoint makeHomePoint(Position position) {
@@ -117,7 +115,9 @@ public class Homes {
     public HomePoint(NBTCompound tag) {
       position = new Position(tag);
       isPublic = tag.getByte(PUBLIC).get().equals((byte) 1);
-      invites = tag.getList(INVITES).cast();
+      // a copy, so that changing it doesn't touch the stored home
+      NBTList<NBTString> stored = tag.getList(INVITES).cast();
+      invites = copy(stored);
     }
 
     public String getInvitedPlayer(String prefix) {
@@ -151,8 +151,16 @@ public class Homes {
       tag.rename(HOME);
       NBTByte publicValue = new NBTByte(PUBLIC, isPublic ? (byte) 1 : (byte) 0);
       tag.put(publicValue);
-      tag.put(invites);
+      tag.put(copy(invites));
       return tag;
     }
+
+    private NBTList<NBTString> copy(NBTList<NBTString> invites) {
+      NBTList<NBTString> copy = new NBTList<NBTString>(INVITES, NBT.STRING);
+      for (int i = 0; i < invites.size(); i++) {
+        copy.add(new NBTString(invites.get(i).get()));
+      }
+      return copy;
+    }
   }
 }
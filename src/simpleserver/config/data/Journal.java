@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import simpleserver.Coordinate;
+import simpleserver.nbt.NBT;
+import simpleserver.nbt.NBTByte;
+import simpleserver.nbt.NBTCompound;
+import simpleserver.nbt.NBTList;
+import simpleserver.nbt.NBTString;
+import simpleserver.nbt.NBTag;
+
+/*
+ * Append-only log of the changes made to simpleserver.dat since its last
+ * snapshot. A record either puts a tag into the compound at a path below the
+ * root or removes one from it, so a change is a few dozen bytes instead of the
+ * whole file, and replaying a record that is already part of the snapshot does
+ * no harm. Chests live outside the NBT tree and get records of their own.
+ *
+ * Before a snapshot is written the journal is moved aside; it is only deleted
+ * once the snapshot is on disk, and startup replays whatever is left. Changes
+ * are made while holding the journal, and so is the snapshot, which makes the
+ * moved journal a subset of it.
+ */
+class Journal {
+  private final static String FILENAME = "simpleserver.journal";
+  private final static String PATH = "simpleserver" + File.separator + FILENAME;
+  private final static String OLD_PATH = PATH + ".old";
+  // ask for a new snapshot once the journal has grown past this
+  private final static long COMPACT_SIZE = 256 * 1024;
+  private final static int MAXIMUM_RECORD = 1024 * 1024;
+
+  private final static byte PUT = 0;
+  private final static byte REMOVE = 1;
+  private final static byte CHEST = 2;
+  private final static byte RELEASE_CHEST = 3;
+
+  private final GlobalData data;
+  private FileOutputStream out;
+  private long size;
+  private boolean failed;
+
+  Journal(GlobalData data) {
+    this.data = data;
+  }
+
+  void put(NBTag tag, String... path) {
+    append(PUT, path, tag);
+  }
+
+  void remove(String name, String... path) {
+    append(REMOVE, path, new NBTString("name", name));
+  }
+
+  void chest(NBTCompound tag) {
+    tag.rename("chest");
+    append(CHEST, new String[0], tag);
+  }
+
+  void releaseChest(Coordinate coordinate) {
+    append(RELEASE_CHEST, new String[0], coordinate.tag());
+  }
+
+  /*
+   * Callers hold the journal while they change the data and append the
+   * record, so the value can't change while it is written and records end
+   * up in the order of the changes, on the same side of rotate() as them.
+   */
+  private synchronized void append(byte op, String[] path, NBTag value) {
+    NBTCompound record = new NBTCompound("");
+    record.put(new NBTByte("op", op));
+    NBTList<NBTString> list = new NBTList<NBTString>("path", NBT.STRING);
+    for (String name : path) {
+      list.add(new NBTString(name));
+    }
+    record.put(list);
+    NBTCompound wrapper = new NBTCompound("value");
+    wrapper.put(value);
+    record.put(wrapper);
+
+    try {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputStream stream = new DataOutputStream(buffer);
+      stream.writeInt(0);
+      record.write(stream);
+      stream.flush();
+      byte[] bytes = buffer.toByteArray();
+      int length = bytes.length - 4;
+      bytes[0] = (byte) (length >>> 24);
+      bytes[1] = (byte) (length >>> 16);
+      bytes[2] = (byte) (length >>> 8);
+      bytes[3] = (byte) length;
+
+      if (out == null) {
+        out = new FileOutputStream(PATH, true);
+      }
+      out.write(bytes);
+      size += bytes.length;
+    } catch (IOException e) {
+      if (!failed) {
+        System.out.println("[ERROR] Writing " + FILENAME + " failed");
+        failed = true;
+      }
+      size = COMPACT_SIZE + 1;
+    }
+    if (size > COMPACT_SIZE) {
+      data.changed();
+    }
+  }
+
+  /*
+   * Moves the journal aside before a snapshot is taken, so everything
+   * recorded from now on ends up in a fresh file. If an earlier snapshot
+   * failed the old journal is still there, and the current one is added to it.
+   */
+  synchronized void rotate() {
+    close();
+    size = 0;
+    failed = false;
+
+    File current = new File(PATH);
+    File old = new File(OLD_PATH);
+    if (!current.exists() || !old.exists() && current.renameTo(old)) {
+      return;
+    }
+
+    try {
+      FileInputStream in = new FileInputStream(current);
+      FileOutputStream append = new FileOutputStream(old, true);
+      try {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          append.write(buffer, 0, read);
+        }
+        append.getFD().sync();
+      } finally {
+        in.close();
+        append.close();
+      }
+      current.delete();
+    } catch (IOException e) {
+      System.out.println("[ERROR] Rotating " + FILENAME + " failed");
+    }
+  }
+
+  // the snapshot holds everything recorded before the last rotate()
+  synchronized void compacted() {
+    new File(OLD_PATH).delete();
+  }
+
+  synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+      }
+      out = null;
+    }
+  }
+
+  void replay(NBTCompound root, Chests chests, PlayerData players) {
+    int records = replay(new File(OLD_PATH), root, chests, players) +
+                  replay(new File(PATH), root, chests, players);
+    if (records > 0) {
+      System.out.println("Replayed " + records + " changes from " + FILENAME);
+    }
+  }
+
+  private int replay(File file, NBTCompound root, Chests chests, PlayerData players) {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    int records = 0;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        if (length < 0 || length > MAXIMUM_RECORD) {
+          throw new IOException("Record too long");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        apply(NBTCompound.read(new DataInputStream(new ByteArrayInputStream(bytes))), root, chests, players);
+        records++;
+      }
+    } catch (EOFException e) {
+      // the server went down in the middle of a record
+      System.out.println("[WARNING] Ignoring incomplete change at the end of " + FILENAME);
+    } catch (Exception e) {
+      System.out.println("[WARNING] " + FILENAME + " is corrupt. Ignoring the rest of it...");
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+    return records;
+  }
+
+  private void apply(NBTCompound record, NBTCompound root, Chests chests, PlayerData players) {
+    byte op = record.getByte("op").get();
+    NBTCompound value = record.getCompound("value");
+    if (op == CHEST) {
+      chests.restore(value.getCompound("chest"));
+      return;
+    } else if (op == RELEASE_CHEST) {
+      chests.forget(new Coordinate(value.getCompound("coordinate")));
+      return;
+    }
+
+    NBTCompound target = root;
+    NBTList<NBTString> path = record.getList("path").cast();
+    int first = 0;
+    String player = null;
+    // player data may not live in simpleserver.dat at all
+    if (path.size() >= 2 && path.get(0).get().equals(PlayerData.PLAYERS)) {
+      player = path.get(1).get();
+      target = players.get(player);
+      first = 2;
+    }
+    for (int i = first; i < path.size(); i++) {
+      String name = path.get(i).get();
+      if (!target.containsKey(name)) {
+        target.put(new NBTCompound(name));
+      }
+      target = target.getCompound(name);
+    }
+
+    if (op == PUT) {
+      for (String name : value.names()) {
+        target.put(value.get(name));
+      }
+    } else if (op == REMOVE) {
+      String name = value.getString("name").get();
+      if (target.containsKey(name)) {
+        target.remove(name);
+      }
+    }
+    if (player != null) {
+      players.updated(player, players.get(player));
+    }
+  }
+}
@@ -20,22 +20,97 @@
  */
 package simpleserver.config.data;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import simpleserver.Player;
 import simpleserver.nbt.NBTArray;
 import simpleserver.nbt.NBTCompound;
 import simpleserver.nbt.NBTString;
+import simpleserver.nbt.NBTag;
 
 public class PlayerData implements Iterable<String> {
   private NBTCompound node;
+  private final Journal journal;
+  private final PlayerIndex index = new PlayerIndex();
+  // set when every player is kept in a file of their own
+  private PlayerShards shards;
+  // otherwise the encoded players and the ones that changed since they were
+  // encoded, guarded by the journal
+  private final Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+  private final Set<String> stale = new HashSet<String>();
   public Stats stats = new Stats(this);
   public Homes homes = new Homes(this);
 
-  private final static String PLAYERS = "players";
+  final static String PLAYERS = "players";
 
-  void load(NBTCompound data) {
+  PlayerData(Journal journal) {
+    this.journal = journal;
+  }
+
+  void load(NBTCompound data, boolean sharded, int cacheSize) {
+    encoded.clear();
+    stale.clear();
+    loadNode(data);
+    boolean indexed = index.load(data);
+    shards = null;
+
+    if (sharded) {
+      PlayerShards files = new PlayerShards(cacheSize);
+      if (node.size() > 0) {
+        System.out.println("Moving " + node.size() + " players to simpleserver/players...");
+        if (move(files)) {
+          for (String name : node.names()) {
+            index.update(name, node.getCompound(name));
+          }
+          shards = files;
+        } else {
+          System.out.println("[WARNING] Moving players failed. Keeping them in simpleserver.dat...");
+        }
+      } else {
+        if (!indexed) {
+          for (String name : files.names()) {
+            NBTCompound player = files.find(name);
+            if (player != null) {
+              index.update(name, player);
+            }
+          }
+          files.clear();
+        }
+        shards = files;
+      }
+      if (shards != null) {
+        data.remove(PLAYERS);
+        node = null;
+        return;
+      }
+    }
+
+    if (!indexed) {
+      for (String name : node.names()) {
+        index.update(name, node.getCompound(name));
+      }
+    }
+    stale.addAll(node.names());
+  }
+
+  // every player has to be on disk before simpleserver.dat is written without them
+  private boolean move(PlayerShards files) {
+    for (String name : node.names()) {
+      if (!files.add(node.getCompound(name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void loadNode(NBTCompound data) {
     if (data.containsKey(PLAYERS)) {
       try {
         node = data.getCompound(PLAYERS);
@@ -49,49 +124,134 @@ public class PlayerData implements Iterable<String> {
     stats.loadOldConfig();
   }
 
+  /*
+   * Called while holding the journal. Only players that changed since the
+   * last snapshot are encoded; everything else is copied as it is.
+   */
+  Snapshot snapshot() throws IOException {
+    if (shards != null) {
+      return new Snapshot(index.snapshot(), shards.snapshot(), null);
+    }
+    for (String name : stale) {
+      encoded.put(name, node.getCompound(name).encodedChildren());
+    }
+    stale.clear();
+    return new Snapshot(index.snapshot(), Collections.<PlayerShards.Record>emptyList(),
+                        new HashMap<String, byte[]>(encoded));
+  }
+
+  // adds the players and the index of a snapshot to simpleserver.dat, outside of any lock
+  void save(NBTCompound data, Snapshot snapshot) {
+    if (snapshot.players != null) {
+      NBTCompound players = new NBTCompound(PLAYERS);
+      for (Map.Entry<String, byte[]> player : snapshot.players.entrySet()) {
+        players.put(NBTCompound.encoded(player.getKey(), player.getValue()));
+      }
+      data.put(players);
+    }
+    data.put(PlayerIndex.save(snapshot.index));
+  }
+
+  // writes the player files of a snapshot; false if one of them failed
+  boolean write(Snapshot snapshot) {
+    return shards == null || shards.write(snapshot.records);
+  }
+
+  // the stored data of a player, or null without creating it
+  NBTCompound find(String name) {
+    name = name.toLowerCase();
+    if (shards != null) {
+      return index.contains(name) ? shards.find(name) : null;
+    }
+    if (node.containsKey(name)) {
+      return node.getCompound(name);
+    }
+    return null;
+  }
+
   NBTCompound get(String name) {
     name = name.toLowerCase();
+    if (shards != null) {
+      return shards.get(name);
+    }
     if (node.containsKey(name)) {
       return node.getCompound(name);
     } else {
       NBTCompound player = new NBTCompound(name);
       node.put(player);
+      stale.add(name);
       return player;
     }
   }
 
+  /*
+   * To be called after a tag was put into the player's data (or into one of
+   * the compounds below it, given by path). Journals the tag and keeps the
+   * index and the player's file up to date.
+   */
+  void changed(String name, NBTCompound player, NBTag tag, String... path) {
+    name = name.toLowerCase();
+    String[] fullPath = new String[path.length + 2];
+    fullPath[0] = PLAYERS;
+    fullPath[1] = name;
+    System.arraycopy(path, 0, fullPath, 2, path.length);
+    journal.put(tag, fullPath);
+    updated(name, player);
+  }
+
+  void removed(String name, NBTCompound player, String tag) {
+    name = name.toLowerCase();
+    journal.remove(tag, PLAYERS, name);
+    updated(name, player);
+  }
+
+  // also used by Journal after replaying a change
+  void updated(String name, NBTCompound player) {
+    index.update(name, player);
+    if (shards != null) {
+      shards.changed(name, player);
+    } else {
+      stale.add(name);
+    }
+  }
+
+  PlayerIndex index() {
+    return index;
+  }
+
+  // held while changing player data, see GlobalData.write()
+  Journal journal() {
+    return journal;
+  }
+
   public Set<String> names() {
-    return node.names();
+    return index.names();
   }
 
   public String getRealName(String playerName) {
-    NBTCompound playerData = get(playerName.toLowerCase());
+    NBTCompound playerData = find(playerName);
     String field = PlayerField.FULL_NAME.toString();
-    if (playerData.containsKey(field)) {
+    if (playerData != null && playerData.containsKey(field)) {
       return playerData.getString(field).get();
     } else {
-      NBTString tag = new NBTString(field, playerName);
-      playerData.put(tag);
-      return tag.get();
+      return playerName;
     }
   }
 
   public String getRenameName(String playerName) {
-    NBTCompound playerData = get(playerName.toLowerCase());
+    NBTCompound playerData = find(playerName);
     String field = PlayerField.RENAME_NAME.toString();
-    if (playerData.containsKey(field)) {
+    if (playerData != null && playerData.containsKey(field)) {
       return playerData.getString(field).get();
     } else {
-      NBTString tag = new NBTString(field, playerName);
-      playerData.put(tag);
-      return tag.get();
+      return playerName;
     }
   }
 
   public byte[] getPwHash(String playerName) {
-    NBTCompound playerData = get(playerName.toLowerCase());
+    NBTCompound playerData = find(playerName);
     String field = PlayerField.PW_HASH.toString();
-    if (playerData.containsKey(field)) {
+    if (playerData != null && playerData.containsKey(field)) {
       byte[] a = playerData.getArray(field).get();
       return a;
     }
@@ -99,44 +259,53 @@ public class PlayerData implements Iterable<String> {
   }
 
   public void setRealName(String realName) {
-    NBTCompound playerData = get(realName.toLowerCase());
-    String field = PlayerField.FULL_NAME.toString();
-    if (playerData.containsKey(field)) {
-      playerData.getString(field).set(realName);
-    } else {
-      NBTString tag = new NBTString(field, realName);
-      playerData.put(tag);
+    synchronized (journal) {
+      NBTCompound playerData = get(realName.toLowerCase());
+      String field = PlayerField.FULL_NAME.toString();
+      if (playerData.containsKey(field)) {
+        playerData.getString(field).set(realName);
+      } else {
+        NBTString tag = new NBTString(field, realName);
+        playerData.put(tag);
+      }
+      changed(realName, playerData, playerData.get(field));
     }
   }
 
   public void setRenameName(Player player, String renameName) {
-    NBTCompound playerData = get(player.getName(true).toLowerCase());
-    String field = PlayerField.RENAME_NAME.toString();
-    if (playerData.containsKey(field)) {
-      playerData.getString(field).set(renameName);
-    } else {
-      NBTString tag = new NBTString(field, player.getName());
-      playerData.put(tag);
+    synchronized (journal) {
+      NBTCompound playerData = get(player.getName(true).toLowerCase());
+      String field = PlayerField.RENAME_NAME.toString();
+      if (playerData.containsKey(field)) {
+        playerData.getString(field).set(renameName);
+      } else {
+        NBTString tag = new NBTString(field, player.getName());
+        playerData.put(tag);
+      }
+      changed(player.getName(true), playerData, playerData.get(field));
     }
   }
 
   public void setPw(String playerName, byte[] pwHash) {
-    NBTCompound playerData = get(playerName.toLowerCase());
-    String field = PlayerField.PW_HASH.toString();
-    if (playerData.containsKey(field)) {
-      playerData.getArray(field).set(pwHash);
-    } else {
-      NBTArray tag = new NBTArray(field, pwHash);
-      playerData.put(tag);
+    synchronized (journal) {
+      NBTCompound playerData = get(playerName.toLowerCase());
+      String field = PlayerField.PW_HASH.toString();
+      if (playerData.containsKey(field)) {
+        playerData.getArray(field).set(pwHash);
+      } else {
+        NBTArray tag = new NBTArray(field, pwHash);
+        playerData.put(tag);
+      }
+      changed(playerName, playerData, playerData.get(field));
     }
   }
 
   public Iterator<String> iterator() {
-    return node.names().iterator();
+    return names().iterator();
   }
 
   public int count() {
-    return node.size();
+    return index.count();
   }
 
   public enum PlayerField {
@@ -144,4 +313,18 @@ public class PlayerData implements Iterable<String> {
     RENAME_NAME, // String
     PW_HASH; // byte[]
   }
+
+  static final class Snapshot {
+    private final Map<String, PlayerIndex.Entry> index;
+    private final List<PlayerShards.Record> records;
+    // null when the players have files of their own
+    private final Map<String, byte[]> players;
+
+    private Snapshot(Map<String, PlayerIndex.Entry> index, List<PlayerShards.Record> records,
+                     Map<String, byte[]> players) {
+      this.index = index;
+      this.records = records;
+      this.players = players;
+    }
+  }
 }
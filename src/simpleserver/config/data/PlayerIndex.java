@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import simpleserver.nbt.NBT;
+import simpleserver.nbt.NBTByte;
+import simpleserver.nbt.NBTCompound;
+import simpleserver.nbt.NBTInt;
+import simpleserver.nbt.NBTList;
+import simpleserver.nbt.NBTString;
+
+/*
+ * What the server needs to know about every player without loading their
+ * data: the names, the total play time and who may visit which home. It is
+ * updated whenever a player's data changes and saved with simpleserver.dat,
+ * so it only has to be rebuilt from the player data when it is missing.
+ */
+class PlayerIndex {
+  private final static String INDEX = "playerIndex";
+  private final static String PLAY_TIME = "playTime";
+  private final static String PUBLIC = "public";
+  private final static String INVITES = "invites";
+
+  private final Map<String, Entry> players = new HashMap<String, Entry>();
+  // invited player -> owners of the homes they were invited to
+  private final Map<String, Set<String>> invitations = new HashMap<String, Set<String>>();
+  private final Set<String> publicHomes = new HashSet<String>();
+  private long playTime;
+
+  synchronized void clear() {
+    players.clear();
+    invitations.clear();
+    publicHomes.clear();
+    playTime = 0;
+  }
+
+  // returns false if simpleserver.dat had no index yet
+  synchronized boolean load(NBTCompound data) {
+    clear();
+    if (!data.containsKey(INDEX)) {
+      return false;
+    }
+    try {
+      NBTCompound index = data.getCompound(INDEX);
+      for (String name : index.names()) {
+        NBTCompound tag = index.getCompound(name);
+        Entry entry = new Entry(tag.getInt(PLAY_TIME).get());
+        if (tag.containsKey(PUBLIC)) {
+          entry.home = true;
+          entry.isPublic = tag.getByte(PUBLIC).get() == 1;
+          NBTList<NBTString> invites = tag.getList(INVITES).cast();
+          for (int i = 0; i < invites.size(); i++) {
+            entry.invites.add(invites.get(i).get());
+          }
+        }
+        add(name, entry);
+      }
+      return true;
+    } catch (Exception e) {
+      System.out.println("[WARNING] Player index is corrupt. Rebuilding it...");
+      clear();
+      return false;
+    } finally {
+      data.remove(INDEX);
+    }
+  }
+
+  // a copy of every entry, taken while holding the journal
+  synchronized Map<String, Entry> snapshot() {
+    Map<String, Entry> copy = new HashMap<String, Entry>(players.size() * 2);
+    for (Map.Entry<String, Entry> player : players.entrySet()) {
+      copy.put(player.getKey(), new Entry(player.getValue()));
+    }
+    return copy;
+  }
+
+  // the index for simpleserver.dat, built from a snapshot outside of any lock
+  static NBTCompound save(Map<String, Entry> players) {
+    NBTCompound index = new NBTCompound(INDEX);
+    for (Map.Entry<String, Entry> player : players.entrySet()) {
+      Entry entry = player.getValue();
+      NBTCompound tag = new NBTCompound(player.getKey());
+      tag.put(new NBTInt(PLAY_TIME, entry.playTime));
+      if (entry.home) {
+        tag.put(new NBTByte(PUBLIC, entry.isPublic ? (byte) 1 : (byte) 0));
+        NBTList<NBTString> invites = new NBTList<NBTString>(INVITES, NBT.STRING);
+        for (String invite : entry.invites) {
+          invites.add(new NBTString(invite));
+        }
+        tag.put(invites);
+      }
+      index.put(tag);
+    }
+    return index;
+  }
+
+  /*
+   * Replaces what is known about a player with what their data says now.
+   */
+  synchronized void update(String name, NBTCompound player) {
+    remove(name);
+
+    Entry entry = new Entry(0);
+    if (player.containsKey(Stats.STATS)) {
+      NBTCompound stats = player.getCompound(Stats.STATS);
+      String field = Stats.StatField.PLAY_TIME.toString();
+      if (stats.containsKey(field)) {
+        entry.playTime = stats.getInt(field).get();
+      }
+    }
+    if (player.containsKey(Homes.HOME)) {
+      NBTCompound home = player.getCompound(Homes.HOME);
+      entry.home = true;
+      entry.isPublic = home.getByte(PUBLIC).get() == 1;
+      NBTList<NBTString> invites = home.getList(INVITES).cast();
+      for (int i = 0; i < invites.size(); i++) {
+        entry.invites.add(invites.get(i).get());
+      }
+    }
+    add(name, entry);
+  }
+
+  private void add(String name, Entry entry) {
+    players.put(name, entry);
+    playTime += entry.playTime;
+    if (entry.isPublic) {
+      publicHomes.add(name);
+    }
+    for (String invite : entry.invites) {
+      Set<String> owners = invitations.get(invite);
+      if (owners == null) {
+        owners = new HashSet<String>();
+        invitations.put(invite, owners);
+      }
+      owners.add(name);
+    }
+  }
+
+  private void remove(String name) {
+    Entry entry = players.remove(name);
+    if (entry == null) {
+      return;
+    }
+    playTime -= entry.playTime;
+    publicHomes.remove(name);
+    for (String invite : entry.invites) {
+      Set<String> owners = invitations.get(invite);
+      if (owners != null && owners.remove(name) && owners.isEmpty()) {
+        invitations.remove(invite);
+      }
+    }
+  }
+
+  synchronized boolean contains(String name) {
+    return players.containsKey(name);
+  }
+
+  synchronized Set<String> names() {
+    return new HashSet<String>(players.keySet());
+  }
+
+  synchronized int count() {
+    return players.size();
+  }
+
+  synchronized long playTime() {
+    return playTime;
+  }
+
+  synchronized boolean hasHome(String name) {
+    Entry entry = players.get(name);
+    return entry != null && entry.home;
+  }
+
+  synchronized Set<String> publicHomes() {
+    return new HashSet<String>(publicHomes);
+  }
+
+  // owners of the homes the player was invited to, by the name they were invited with
+  synchronized Set<String> invitations(String player) {
+    Set<String> owners = invitations.get(player);
+    if (owners == null) {
+      return Collections.emptySet();
+    }
+    return new HashSet<String>(owners);
+  }
+
+  static final class Entry {
+    private int playTime;
+    private boolean home;
+    private boolean isPublic;
+    private final List<String> invites;
+
+    private Entry(int playTime) {
+      this.playTime = playTime;
+      invites = new ArrayList<String>();
+    }
+
+    private Entry(Entry entry) {
+      playTime = entry.playTime;
+      home = entry.home;
+      isPublic = entry.isPublic;
+      invites = new ArrayList<String>(entry.invites);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import simpleserver.nbt.GZipNBTFile;
+import simpleserver.nbt.NBTCompound;
+
+/*
+ * Keeps every player's data in a file of its own under simpleserver/players.
+ * Records are read when they are needed and kept in a bounded LRU cache.
+ * Changed records are written (and synced) before simpleserver.dat is, and
+ * stay cached until then, so untouched players cost neither memory nor save
+ * time and nothing is written while a tunnel thread waits for a record.
+ */
+class PlayerShards {
+  private final static String FOLDER = "simpleserver" + File.separator + "players";
+  private final static String EXTENSION = ".dat";
+
+  private final int capacity;
+  private final Map<String, NBTCompound> cache;
+  // changed records and the generation of their last change; never evicted
+  private final Map<String, Long> dirty = new HashMap<String, Long>();
+  private long generation;
+
+  PlayerShards(int capacity) {
+    this.capacity = Math.max(capacity, 1);
+    cache = new LinkedHashMap<String, NBTCompound>(16, 0.75f, true);
+    new File(FOLDER).mkdirs();
+  }
+
+  // the player's record, or null if there is none
+  synchronized NBTCompound find(String name) {
+    NBTCompound player = cache.get(name);
+    if (player == null) {
+      player = read(name);
+      if (player != null) {
+        cache.put(name, player);
+        trim();
+      }
+    }
+    return player;
+  }
+
+  synchronized NBTCompound get(String name) {
+    NBTCompound player = find(name);
+    if (player == null) {
+      player = new NBTCompound(name);
+      cache.put(name, player);
+      trim();
+    }
+    return player;
+  }
+
+  // the record has to be written; it stays cached until it is
+  synchronized void changed(String name, NBTCompound player) {
+    cache.put(name, player);
+    dirty.put(name, ++generation);
+    trim();
+  }
+
+  // writes a record that isn't cached, used when moving players out of simpleserver.dat
+  boolean add(NBTCompound player) {
+    String name = player.name().get();
+    try {
+      return write(name, serialize(player));
+    } catch (IOException e) {
+      System.out.println("[ERROR] Writing data of " + name + " failed");
+      return false;
+    }
+  }
+
+  /*
+   * Serializes the changed records, while holding the journal so that none of
+   * them is changing. They are written by write(), outside of any lock.
+   */
+  synchronized List<Record> snapshot() throws IOException {
+    List<Record> records = new ArrayList<Record>(dirty.size());
+    for (Map.Entry<String, Long> entry : dirty.entrySet()) {
+      String name = entry.getKey();
+      records.add(new Record(name, entry.getValue(), serialize(cache.get(name))));
+    }
+    return records;
+  }
+
+  // returns false if a record could not be written; it stays dirty then
+  boolean write(List<Record> records) {
+    boolean written = true;
+    for (Record record : records) {
+      if (write(record.name, record.data)) {
+        synchronized (this) {
+          Long last = dirty.get(record.name);
+          if (last != null && last == record.generation) {
+            dirty.remove(record.name);
+          }
+        }
+      } else {
+        written = false;
+      }
+    }
+    synchronized (this) {
+      trim();
+    }
+    return written;
+  }
+
+  // evicts the least recently used records that are already on disk
+  private void trim() {
+    Iterator<String> names = cache.keySet().iterator();
+    while (cache.size() > capacity && names.hasNext()) {
+      if (!dirty.containsKey(names.next())) {
+        names.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    cache.clear();
+    dirty.clear();
+  }
+
+  // names of all players with a record, read from the folder
+  Set<String> names() {
+    Set<String> names = new HashSet<String>();
+    String[] files = new File(FOLDER).list();
+    if (files != null) {
+      for (String file : files) {
+        if (file.endsWith(EXTENSION)) {
+          names.add(decode(file.substring(0, file.length() - EXTENSION.length())));
+        }
+      }
+    }
+    return names;
+  }
+
+  private NBTCompound read(String name) {
+    try {
+      NBTCompound player = new GZipNBTFile(filename(name)).root();
+      player.rename(name);
+      return player;
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (Exception e) {
+      System.out.println("[WARNING] Data of " + name + " is corrupt. Ignoring it...");
+      return null;
+    }
+  }
+
+  private static byte[] serialize(NBTCompound player) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buffer);
+    player.write(out);
+    out.flush();
+    return buffer.toByteArray();
+  }
+
+  private boolean write(String name, byte[] data) {
+    try {
+      GlobalData.writeCompressed(new File(filename(name)), data);
+      return true;
+    } catch (IOException e) {
+      System.out.println("[ERROR] Writing data of " + name + " failed");
+      return false;
+    }
+  }
+
+  private static String filename(String name) {
+    return FOLDER + File.separator + encode(name) + EXTENSION;
+  }
+
+  // keeps file names portable; Minecraft names never need escaping
+  private static String encode(String name) {
+    StringBuilder file = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-') {
+        file.append(c);
+      } else {
+        file.append(String.format("%%%04x", (int) c));
+      }
+    }
+    return file.toString();
+  }
+
+  private static String decode(String file) {
+    StringBuilder name = new StringBuilder(file.length());
+    for (int i = 0; i < file.length(); i++) {
+      char c = file.charAt(i);
+      if (c == '%' && i + 5 <= file.length()) {
+        name.append((char) Integer.parseInt(file.substring(i + 1, i + 5), 16));
+        i += 4;
+      } else {
+        name.append(c);
+      }
+    }
+    return name.toString();
+  }
+
+  static final class Record {
+    private final String name;
+    private final long generation;
+    private final byte[] data;
+
+    private Record(String name, long generation, byte[] data) {
+      this.name = name;
+      this.generation = generation;
+      this.data = data;
+    }
+  }
+}
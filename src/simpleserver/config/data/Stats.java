@@ -33,24 +33,32 @@ public class Stats {
     this.playerData = playerData;
   }
 
-  private final static String STATS = "stats";
+  final static String STATS = "stats";
 
   public int get(Player player, StatField field) {
-    return getInt(player.getName(), field.toString()).get();
+    return read(player.getName(), field.toString());
   }
 
   public void set(Player player, StatField field, int value) {
-    getInt(player.getName(), field.toString()).set(value);
+    synchronized (playerData.journal()) {
+      NBTCompound data = playerData.get(player.getName());
+      NBTInt tag = getInt(data, field.toString());
+      tag.set(value);
+      playerData.changed(player.getName(), data, tag, STATS);
+    }
   }
 
   public int add(Player player, StatField field, int amount) {
-    NBTInt tag = getInt(player.getName(), field.toString());
-    tag.set(tag.get() + amount);
-    return tag.get();
+    synchronized (playerData.journal()) {
+      NBTCompound data = playerData.get(player.getName());
+      NBTInt tag = getInt(data, field.toString());
+      tag.set(tag.get() + amount);
+      playerData.changed(player.getName(), data, tag, STATS);
+      return tag.get();
+    }
   }
 
-  private NBTCompound getStats(String name) {
-    NBTCompound player = playerData.get(name);
+  private NBTCompound getStats(NBTCompound player) {
     if (player.containsKey(STATS)) {
       return player.getCompound(STATS);
     } else {
@@ -61,22 +69,26 @@ public class Stats {
   }
 
   public int totalHours() {
-    int hours = 0;
+    return (int) playerData.index().playTime();
+  }
 
-    for (String name : playerData) {
-      hours += getInt(name, StatField.PLAY_TIME.toString()).get();
+  // like getInt, but doesn't add missing tags
+  private int read(String name, String key) {
+    NBTCompound player = playerData.find(name);
+    if (player == null || !player.containsKey(STATS)) {
+      return 0;
     }
-
-    return hours;
+    NBTCompound stats = player.getCompound(STATS);
+    return stats.containsKey(key) ? stats.getInt(key).get() : 0;
   }
 
-  private NBTInt getInt(String name, String key) {
-    NBTCompound player = getStats(name);
-    if (player.containsKey(key)) {
-      return player.getInt(key);
+  private NBTInt getInt(NBTCompound player, String key) {
+    NBTCompound stats = getStats(player);
+    if (stats.containsKey(key)) {
+      return stats.getInt(key);
     } else {
       NBTInt tag = new NBTInt(key, 0);
-      player.put(tag);
+      stats.put(tag);
       return tag;
     }
   }
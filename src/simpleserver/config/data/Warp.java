@@ -33,6 +33,11 @@ public class Warp {
   private NBTCompound node;
   private final String WARP = "warp";
   private final String CAPS = "capitals";
+  private final Journal journal;
+
+  Warp(Journal journal) {
+    this.journal = journal;
+  }
 
   public Set<String> keys() {
     return node.names();
@@ -84,15 +89,21 @@ public class Warp {
   }
 
   public void set(String name, Position pos) {
-    NBTCompound tag = pos.tag();
-    tag.rename(name.toLowerCase());
-    tag.put(new NBTArray(CAPS, capitals(name)));
-    node.put(tag);
+    synchronized (journal) {
+      NBTCompound tag = pos.tag();
+      tag.rename(name.toLowerCase());
+      tag.put(new NBTArray(CAPS, capitals(name)));
+      node.put(tag);
+      journal.put(tag, WARP);
+    }
   }
 
   public void remove(String name) {
-    name = name.toLowerCase();
-    node.remove(name);
+    synchronized (journal) {
+      name = name.toLowerCase();
+      node.remove(name);
+      journal.remove(name, WARP);
+    }
   }
 
   void load(NBTCompound data) {
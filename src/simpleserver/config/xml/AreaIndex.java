@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The areas of a dimension in a bounding volume hierarchy that lives in int
+ * arrays. Areas are numbered in priority order (Area.compareTo), so a query
+ * only has to sort the ids it found. Queries write into a Buffer owned by the
+ * caller and allocate nothing once the buffer has grown to fit.
+ *
+ * An index is immutable. with() and without() return a copy that shares the
+ * hierarchy: areas added since it was built get ids after the indexed ones
+ * and are checked one by one, removed areas are masked out. The hierarchy is
+ * rebuilt once more than REBUILD_CHANGES of these are pending, as in
+ * SegmentTree.
+ */
+public final class AreaIndex {
+  private static final int LEAF_SIZE = 4;
+  private static final int REBUILD_CHANGES = 64;
+
+  // Area.compareTo, but consistent for areas that tie
+  private static final Comparator<Area> PRIORITY = new Comparator<Area>() {
+    public int compare(Area a, Area b) {
+      if (a.level != b.level) {
+        return a.level < b.level ? -1 : 1;
+      } else if (a.priority != b.priority) {
+        return a.priority > b.priority ? -1 : 1;
+      } else if (a.position != b.position) {
+        return a.position < b.position ? -1 : 1;
+      }
+      return 0;
+    }
+  };
+
+  private final Area[] areas;
+  private final int[] parents;
+  private final int[] levels;
+  // minX, minY, minZ, maxX, maxY, maxZ per area and per node
+  private final int[] boxes;
+  private final int[] bounds;
+  // per node: first child and 0, or first item and item count for leaves
+  private final int[] nodes;
+  private final int[] items;
+  private final boolean[] removed;
+  // areas in the hierarchy, the rest were added later
+  private final int indexed;
+  private final int changes;
+  private int nodeCount;
+  private int depth;
+
+  public AreaIndex(Collection<Area> areas) {
+    this.areas = areas.toArray(new Area[areas.size()]);
+    Arrays.sort(this.areas, PRIORITY);
+
+    int count = this.areas.length;
+    Map<Area, Integer> ids = new IdentityHashMap<Area, Integer>();
+    for (int id = 0; id < count; id++) {
+      ids.put(this.areas[id], id);
+    }
+
+    parents = new int[count];
+    levels = new int[count];
+    boxes = new int[count * 6];
+    items = new int[count];
+    removed = new boolean[count];
+    indexed = count;
+    changes = 0;
+    for (int id = 0; id < count; id++) {
+      Area area = this.areas[id];
+      Integer parent = area.parent == null ? null : ids.get(area.parent);
+      parents[id] = parent == null ? -1 : parent;
+      set(id, area);
+      items[id] = id;
+    }
+
+    int maxNodes = Math.max(1, 2 * count);
+    bounds = new int[maxNodes * 6];
+    nodes = new int[maxNodes * 2];
+    if (count > 0) {
+      nodeCount = 1;
+      build(0, 0, count, 1);
+    }
+  }
+
+  private AreaIndex(AreaIndex index, int count) {
+    areas = Arrays.copyOf(index.areas, count);
+    parents = Arrays.copyOf(index.parents, count);
+    levels = Arrays.copyOf(index.levels, count);
+    boxes = Arrays.copyOf(index.boxes, count * 6);
+    removed = Arrays.copyOf(index.removed, count);
+    bounds = index.bounds;
+    nodes = index.nodes;
+    items = index.items;
+    indexed = index.indexed;
+    changes = index.changes + 1;
+    nodeCount = index.nodeCount;
+    depth = index.depth;
+  }
+
+  public int size() {
+    int size = 0;
+    for (boolean gone : removed) {
+      if (!gone) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /*
+   * This index with the given area added, for the price of copying the
+   * per-area arrays instead of sorting and splitting all areas again.
+   */
+  public AreaIndex with(Area area) {
+    if (changes >= REBUILD_CHANGES) {
+      List<Area> next = live();
+      next.add(area);
+      return new AreaIndex(next);
+    }
+
+    int id = areas.length;
+    AreaIndex next = new AreaIndex(this, id + 1);
+    next.set(id, area);
+    next.parents[id] = -1;
+    for (int i = 0; i < id; i++) {
+      if (removed[i]) {
+        continue;
+      }
+      if (areas[i] == area.parent) {
+        next.parents[id] = i;
+      }
+      if (areas[i].parent == area) {
+        next.parents[i] = id;
+      }
+    }
+    return next;
+  }
+
+  public AreaIndex without(Area area) {
+    int id = -1;
+    for (int i = 0; i < areas.length; i++) {
+      if (areas[i] == area && !removed[i]) {
+        id = i;
+      }
+    }
+    if (id == -1) {
+      return this;
+    } else if (changes >= REBUILD_CHANGES) {
+      List<Area> next = live();
+      next.remove(area);
+      return new AreaIndex(next);
+    }
+
+    AreaIndex next = new AreaIndex(this, areas.length);
+    next.removed[id] = true;
+    for (int i = 0; i < areas.length; i++) {
+      if (parents[i] == id) {
+        next.parents[i] = -1;
+      }
+    }
+    return next;
+  }
+
+  /*
+   * The areas that apply at the given point, outermost first: the same list
+   * DimensionAreaStorage.get used to build from the segment tree.
+   */
+  public void find(int x, int y, int z, Buffer out) {
+    out.index = this;
+    out.size = 0;
+    if (nodeCount == 0) {
+      return;
+    }
+
+    int[] stack = out.stack(2 * depth + 2);
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (!contains(bounds, node, x, y, z)) {
+        continue;
+      }
+      int first = nodes[node * 2];
+      int count = nodes[node * 2 + 1];
+      if (count == 0) {
+        stack[top++] = first;
+        stack[top++] = first + 1;
+      } else {
+        for (int i = first; i < first + count; i++) {
+          find(items[i], x, y, z, out);
+        }
+      }
+    }
+    for (int id = indexed; id < areas.length; id++) {
+      find(id, x, y, z, out);
+    }
+
+    // keep the chain of nested areas, as with Collections.sort before
+    int[] ids = out.ids;
+    if (indexed == areas.length) {
+      Arrays.sort(ids, 0, out.size);
+    } else {
+      sortByPriority(ids, out.size);
+    }
+    int level = 0;
+    int active = 0;
+    for (int i = 0; i < out.size; i++) {
+      int id = ids[i];
+      if (levels[id] != level) {
+        continue;
+      }
+      if (active == 0 || ids[active - 1] == parents[id]) {
+        ids[active++] = id;
+        level++;
+      }
+    }
+    out.size = active;
+  }
+
+  private void find(int id, int x, int y, int z, Buffer out) {
+    if (!removed[id] && contains(boxes, id, x, y, z)) {
+      for (; id != -1; id = parents[id]) {
+        out.add(id);
+      }
+    }
+  }
+
+  // added areas break the id order; results are short, so insertion sort
+  private void sortByPriority(int[] ids, int size) {
+    for (int i = 1; i < size; i++) {
+      int id = ids[i];
+      int j = i;
+      for (; j > 0 && PRIORITY.compare(areas[ids[j - 1]], areas[id]) > 0; j--) {
+        ids[j] = ids[j - 1];
+      }
+      ids[j] = id;
+    }
+  }
+
+  private void set(int id, Area area) {
+    areas[id] = area;
+    levels[id] = area.level;
+    boxes[id * 6] = Math.min(area.start.x(), area.end.x());
+    boxes[id * 6 + 1] = Math.min(area.start.y(), area.end.y());
+    boxes[id * 6 + 2] = Math.min(area.start.z(), area.end.z());
+    boxes[id * 6 + 3] = Math.max(area.start.x(), area.end.x());
+    boxes[id * 6 + 4] = Math.max(area.start.y(), area.end.y());
+    boxes[id * 6 + 5] = Math.max(area.start.z(), area.end.z());
+  }
+
+  private List<Area> live() {
+    List<Area> live = new ArrayList<Area>(areas.length + 1);
+    for (int id = 0; id < areas.length; id++) {
+      if (!removed[id]) {
+        live.add(areas[id]);
+      }
+    }
+    return live;
+  }
+
+  private void build(int node, int from, int to, int level) {
+    depth = Math.max(depth, level);
+    int offset = node * 6;
+    bounds[offset] = bounds[offset + 1] = bounds[offset + 2] = Integer.MAX_VALUE;
+    bounds[offset + 3] = bounds[offset + 4] = bounds[offset + 5] = Integer.MIN_VALUE;
+    for (int i = from; i < to; i++) {
+      int box = items[i] * 6;
+      for (int d = 0; d < 3; d++) {
+        bounds[offset + d] = Math.min(bounds[offset + d], boxes[box + d]);
+        bounds[offset + 3 + d] = Math.max(bounds[offset + 3 + d], boxes[box + 3 + d]);
+      }
+    }
+
+    if (to - from <= LEAF_SIZE) {
+      nodes[node * 2] = from;
+      nodes[node * 2 + 1] = to - from;
+      return;
+    }
+
+    // split at the median along the longest side
+    int axis = 0;
+    for (int d = 1; d < 3; d++) {
+      if (bounds[offset + 3 + d] - bounds[offset + d] > bounds[offset + 3 + axis] - bounds[offset + axis]) {
+        axis = d;
+      }
+    }
+    sortByCenter(from, to, axis);
+
+    int left = nodeCount;
+    nodeCount += 2;
+    nodes[node * 2] = left;
+    nodes[node * 2 + 1] = 0;
+    int middle = (from + to) >>> 1;
+    build(left, from, middle, level + 1);
+    build(left + 1, middle, to, level + 1);
+  }
+
+  private void sortByCenter(int from, int to, int axis) {
+    // twice the center in the high half, so a primitive sort does the job
+    long[] keys = new long[to - from];
+    for (int i = from; i < to; i++) {
+      int box = items[i] * 6;
+      long center = (long) boxes[box + axis] + boxes[box + 3 + axis];
+      keys[i - from] = center << 32 | items[i];
+    }
+    Arrays.sort(keys);
+    for (int i = from; i < to; i++) {
+      items[i] = (int) keys[i - from];
+    }
+  }
+
+  private static boolean contains(int[] boxes, int box, int x, int y, int z) {
+    int offset = box * 6;
+    return x >= boxes[offset] && x <= boxes[offset + 3]
+        && y >= boxes[offset + 1] && y <= boxes[offset + 4]
+        && z >= boxes[offset + 2] && z <= boxes[offset + 5];
+  }
+
+  /*
+   * Query results, reusable by one thread at a time.
+   */
+  public static final class Buffer {
+    private int[] ids = new int[16];
+    private int[] stack = new int[32];
+    private int size;
+    private AreaIndex index;
+
+    public int size() {
+      return size;
+    }
+
+    public Area get(int i) {
+      return index.areas[ids[i]];
+    }
+
+    private void add(int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size++] = id;
+    }
+
+    private int[] stack(int size) {
+      if (stack.length < size) {
+        stack = new int[size];
+      }
+      return stack;
+    }
+  }
+}
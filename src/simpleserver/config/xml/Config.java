@@ -41,6 +41,14 @@ public class Config extends PermissionContainer {
   public GroupStorage groups;
   public DimensionStorage dimensions;
 
+  private final PermissionCache permissionCache = new PermissionCache();
+  private final ThreadLocal<AreaIndex.Buffer> areaBuffer = new ThreadLocal<AreaIndex.Buffer>() {
+    @Override
+    protected AreaIndex.Buffer initialValue() {
+      return new AreaIndex.Buffer();
+    }
+  };
+
   public Config() {
     super("config");
   }
@@ -80,7 +88,7 @@ public class Config extends PermissionContainer {
   }
 
   public AreaStoragePair playerArea(Player player) {
-    String name = player.getName().toLowerCase();
+    String name = player.getLowercaseName();
     for (DimensionConfig dim : dimensions) {
       Stack<AreaStorage> stack = new Stack<AreaStorage>();
       stack.add(dim.topAreas);
@@ -115,41 +123,82 @@ public class Config extends PermissionContainer {
     DimensionConfig dim = dimensions.get(coordinate.dimension());
     if (dim != null) {
       containers.add(dim);
-      containers.addAll(dim.areas.get(coordinate));
+      AreaIndex.Buffer areas = areaBuffer.get();
+      dim.areas.get(coordinate, areas);
+      for (int i = 0; i < areas.size(); i++) {
+        containers.add(areas.get(i));
+      }
     }
 
     return containers;
   }
 
+  // walks the same containers as containers(), without building the list
   public Permission getCommandPermission(String name, String args, Coordinate coordinate) {
-    Permission perm = null;
-    for (PermissionContainer container : containers(coordinate)) {
-      if (container.commands.contains(name)) {
-        perm = container.commands.get(name).allow(args);
+    Permission perm = commandPermission(this, name, args, null);
+
+    DimensionConfig dim = dimensions.get(coordinate.dimension());
+    if (dim != null) {
+      perm = commandPermission(dim, name, args, perm);
+      AreaIndex.Buffer areas = areaBuffer.get();
+      dim.areas.get(coordinate, areas);
+      for (int i = 0; i < areas.size(); i++) {
+        perm = commandPermission(areas.get(i), name, args, perm);
       }
     }
     return perm == null ? new Permission() : perm;
   }
 
+  private static Permission commandPermission(PermissionContainer container, String name,
+                                              String args, Permission perm) {
+    if (container.commands.contains(name)) {
+      return container.commands.get(name).allow(args);
+    }
+    return perm;
+  }
+
   public BlockPermission blockPermission(Player player, Coordinate coordinate) {
     return blockPermission(player, coordinate, 0);
   }
 
   public BlockPermission blockPermission(Player player, Coordinate coordinate, int id) {
-    BlockPermission perm = new BlockPermission();
-
-    for (PermissionContainer area : containers(coordinate)) {
-      perm.add(area.allblocks.blocks);
-      if (id > 0) {
-        perm.add(area.blocks.get(id));
+    DimensionConfig dim = dimensions.get(coordinate.dimension());
+    AreaIndex.Buffer areas = areaBuffer.get();
+    Area innermost = null;
+    if (dim != null) {
+      dim.areas.get(coordinate, areas);
+      if (areas.size() > 0) {
+        innermost = areas.get(areas.size() - 1);
       }
-      perm.add(area.chests.chests);
     }
 
+    BlockPermission perm = permissionCache.get(player, coordinate.dimension(), innermost, id);
+    if (perm != null) {
+      return perm;
+    }
+
+    perm = new BlockPermission();
+    perm.add(this, id);
+    if (dim != null) {
+      perm.add(dim, id);
+      for (int i = 0; i < areas.size(); i++) {
+        perm.add(areas.get(i), id);
+      }
+    }
     perm.finish(player);
+
+    permissionCache.put(player, coordinate.dimension(), innermost, id, perm);
     return perm;
   }
 
+  /*
+   * Has to be called when permissions or areas were changed in place, so
+   * cached block permissions are decided again.
+   */
+  public void permissionsChanged() {
+    permissionCache.clear();
+  }
+
   public static class BlockPermission {
     public boolean place;
     public boolean destroy;
@@ -163,6 +212,17 @@ public class Config extends PermissionContainer {
     private Permission givePerm;
     private Permission chestPerm;
 
+    // whether any of the permissions names players, not only groups
+    boolean personal;
+
+    void add(PermissionContainer container, int id) {
+      add(container.allblocks.blocks);
+      if (id > 0) {
+        add(container.blocks.get(id));
+      }
+      add(container.chests.chests);
+    }
+
     void add(AllBlocks allblocks) {
       if (allblocks != null) {
         if (allblocks.place != null) {
@@ -203,6 +263,12 @@ public class Config extends PermissionContainer {
       give = givePerm == null ? true : givePerm.contains(player);
       use = usePerm == null ? true : usePerm.contains(player);
       chest = chestPerm == null ? true : chestPerm.contains(player);
+      personal = namesPlayers(placePerm) || namesPlayers(destroyPerm) || namesPlayers(givePerm)
+          || namesPlayers(usePerm) || namesPlayers(chestPerm);
+    }
+
+    private static boolean namesPlayers(Permission permission) {
+      return permission != null && permission.namesPlayers();
     }
   }
 }
@@ -21,8 +21,8 @@
 package simpleserver.config.xml;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Deque;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -46,6 +46,10 @@ public class DimensionAreaStorage {
 
   private SegmentTree<Area> tree = new SegmentTree<Area>(3);
   private Deque<Area> positions = new LinkedList<Area>();
+  // point queries go to the index, which is updated when an area changes
+  private final Set<Area> areas = new LinkedHashSet<Area>();
+  private volatile AreaIndex index = new AreaIndex(areas);
+  private boolean built = false;
 
   private DimensionAreaStorage() {
     positions.push(null);
@@ -70,13 +74,19 @@ public class DimensionAreaStorage {
     positions.push(null);
   }
 
-  public void add(Area area) {
+  public synchronized void add(Area area) {
+    if (areas.add(area) && built) {
+      index = index.with(area);
+    }
     tree.add(new int[] { area.start.y(), area.start.x(), area.start.z() },
              new int[] { area.end.y(), area.end.x(), area.end.z() },
              area);
   }
 
-  public void remove(Area area) {
+  public synchronized void remove(Area area) {
+    if (areas.remove(area) && built) {
+      index = index.without(area);
+    }
     tree.remove(area);
   }
 
@@ -86,35 +96,28 @@ public class DimensionAreaStorage {
   }
 
   public List<Area> get(Coordinate coord) {
-    List<Area> areas = tree.get(coord.y(), coord.x(), coord.z());
-    for (Area area : new ArrayList<Area>(areas)) {
-      Area parent = area;
-      while (parent.parent != null) {
-        areas.add(parent = parent.parent);
-      }
-    }
-    Collections.sort(areas);
-    LinkedList<Area> active = new LinkedList<Area>();
-    int level = 0;
-    for (Area area : areas) {
-      if (area.level != level) {
-        continue;
-      }
-      if (active.isEmpty() || active.getLast() == area.parent) {
-        active.add(area);
-        level++;
-      }
+    AreaIndex.Buffer buffer = new AreaIndex.Buffer();
+    get(coord, buffer);
+    List<Area> active = new ArrayList<Area>(buffer.size());
+    for (int i = 0; i < buffer.size(); i++) {
+      active.add(buffer.get(i));
     }
     return active;
   }
 
+  public void get(Coordinate coord, AreaIndex.Buffer buffer) {
+    index.find(coord.x(), coord.y(), coord.z(), buffer);
+  }
+
   void decreaseLevel() {
     if (positions != null && !positions.isEmpty()) {
       positions.pop();
     }
   }
 
-  void buildTree() {
+  synchronized void buildTree() {
     tree.build();
+    index = new AreaIndex(areas);
+    built = true;
   }
 }
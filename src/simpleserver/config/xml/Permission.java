@@ -22,6 +22,7 @@ package simpleserver.config.xml;
 
 import static simpleserver.config.xml.XMLTag.getInt;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -42,12 +43,22 @@ public class Permission {
   private TreeMap<Integer, Integer> allowedGroups = new TreeMap<Integer, Integer>();
   private TreeMap<Integer, Integer> disallowedGroups = new TreeMap<Integer, Integer>();
 
+  // compiled from the above: ids of named players, and groups as bitsets
+  private static final int FIRST_GROUP = -128;
+  private static final int GROUPS = 512;
+  private int[] allowedIds;
+  private int[] disallowedIds;
+  private long[] allowedBits;
+  private long[] disallowedBits;
+
   public Permission(String permission) throws SAXException {
     set(permission);
+    compile();
   }
 
   public Permission() {
     allowedGroups.put(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    compile();
   }
 
   public Permission(String allow, String disallow) throws SAXException {
@@ -94,10 +105,12 @@ public class Permission {
     }
 
     set(perm.toString());
+    compile();
   }
 
   public Permission(Player player) {
-    allowedPlayers.add(player.getName().toLowerCase());
+    allowedPlayers.add(player.getLowercaseName());
+    compile();
   }
 
   private void set(String permission) throws SAXException {
@@ -160,14 +173,55 @@ public class Permission {
     }
   }
 
+  private void compile() {
+    allowedIds = ids(allowedPlayers);
+    disallowedIds = ids(disallowedPlayers);
+    allowedBits = bits(allowedGroups);
+    disallowedBits = bits(disallowedGroups);
+  }
+
+  private static int[] ids(Set<String> players) {
+    int[] ids = new int[players.size()];
+    int i = 0;
+    for (String player : players) {
+      ids[i++] = PlayerIds.of(player);
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  private static long[] bits(TreeMap<Integer, Integer> ranges) {
+    long[] bits = new long[GROUPS / 64];
+    for (int i = 0; i < GROUPS; i++) {
+      if (contains(ranges, FIRST_GROUP + i)) {
+        bits[i >>> 6] |= 1L << i;
+      }
+    }
+    return bits;
+  }
+
   public boolean contains(Player player) {
-    if (disallowedPlayers.contains(player.getName().toLowerCase())) {
+    if (disallowedIds.length != 0 && Arrays.binarySearch(disallowedIds, player.getNameId()) >= 0) {
       return false;
     }
-    if (contains(disallowedGroups, player.getGroupId())) {
+    int group = player.getGroupId();
+    if (contains(disallowedBits, disallowedGroups, group)) {
       return false;
     }
-    return allowedPlayers.contains(player.getName().toLowerCase()) || contains(allowedGroups, player.getGroupId());
+    return (allowedIds.length != 0 && Arrays.binarySearch(allowedIds, player.getNameId()) >= 0)
+        || contains(allowedBits, allowedGroups, group);
+  }
+
+  public boolean namesPlayers() {
+    return allowedIds.length != 0 || disallowedIds.length != 0;
+  }
+
+  private static boolean contains(long[] bits, TreeMap<Integer, Integer> ranges, int group) {
+    int i = group - FIRST_GROUP;
+    if (i >= 0 && i < GROUPS) {
+      return (bits[i >>> 6] & 1L << i) != 0;
+    }
+    return contains(ranges, group);
   }
 
   private static boolean contains(TreeMap<Integer, Integer> ranges, int value) {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.xml;
+
+import simpleserver.Player;
+import simpleserver.Coordinate.Dimension;
+import simpleserver.config.xml.Config.BlockPermission;
+
+/*
+ * Block permission decisions of a Config. The innermost area at a position
+ * determines every container that applies there, so a decision is keyed by
+ * dimension, innermost area (none for most of the world), group and block
+ * id. Decisions that name players are also keyed by the player.
+ *
+ * A fixed table of immutable entries, one per slot: a lookup is one probe
+ * and takes no lock, colliding keys simply replace each other.
+ */
+final class PermissionCache {
+  private static final int SIZE = 1 << 12;
+
+  private volatile Entry[] entries = new Entry[SIZE];
+
+  BlockPermission get(Player player, Dimension dimension, Area area, int id) {
+    Entry entry = entries[slot(dimension, area, player.getGroupId(), id)];
+    if (entry != null && entry.dimension == dimension && entry.area == area
+        && entry.group == player.getGroupId() && entry.id == id
+        && (!entry.permission.personal || entry.player == player.getNameId())) {
+      return entry.permission;
+    }
+    return null;
+  }
+
+  void put(Player player, Dimension dimension, Area area, int id, BlockPermission permission) {
+    int name = player.getNameId();
+    if (permission.personal && name < 0) {
+      // no name yet or any more, so nobody the decision could be kept for
+      return;
+    }
+    Entry entry = new Entry(dimension, area, player.getGroupId(), id, name, permission);
+    entries[slot(dimension, area, entry.group, id)] = entry;
+  }
+
+  void clear() {
+    entries = new Entry[SIZE];
+  }
+
+  private static int slot(Dimension dimension, Area area, int group, int id) {
+    int hash = dimension.ordinal();
+    hash = hash * 31 + (area == null ? 0 : System.identityHashCode(area));
+    hash = hash * 31 + group;
+    hash = hash * 31 + id;
+    hash *= 0x9e3779b9;
+    return (hash >>> 20) & (SIZE - 1);
+  }
+
+  private static final class Entry {
+    final Dimension dimension;
+    final Area area;
+    final int group;
+    final int id;
+    // name id of the player, only compared for personal decisions
+    final int player;
+    final BlockPermission permission;
+
+    Entry(Dimension dimension, Area area, int group, int id, int player,
+          BlockPermission permission) {
+      this.dimension = dimension;
+      this.area = area;
+      this.group = group;
+      this.id = id;
+      this.player = player;
+      this.permission = permission;
+    }
+  }
+}
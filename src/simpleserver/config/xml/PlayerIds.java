@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.xml;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Small integer ids for lowercase player names, handed out on first use and
+ * kept for the lifetime of the server. Permissions store the ids of the
+ * players they name and Player caches its own, so a check compares ints.
+ */
+public final class PlayerIds {
+  private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+  private static final AtomicInteger next = new AtomicInteger();
+
+  private PlayerIds() {
+  }
+
+  public static int of(String lowercaseName) {
+    Integer id = ids.get(lowercaseName);
+    if (id == null) {
+      Integer created = next.getAndIncrement();
+      id = ids.putIfAbsent(lowercaseName, created);
+      if (id == null) {
+        id = created;
+      }
+    }
+    return id;
+  }
+}
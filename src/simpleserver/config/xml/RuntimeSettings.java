@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config.xml;
+
+/*
+ * The properties read for every chat message, login or ping, taken from the
+ * config once per (re)load. Server publishes a new instance after a reload,
+ * so a reader sees either all old or all new values.
+ */
+public final class RuntimeSettings {
+  public final int maxPlayers;
+  public final String serverDescription;
+  public final boolean showListOnConnect;
+
+  public final boolean useMsgFormats;
+  public final boolean msgWrap;
+  public final String msgFormat;
+  public final String msgTitleFormat;
+  public final String msgForwardFormat;
+  public final boolean forwardChat;
+  public final boolean forwardAllCommands;
+  public final boolean chatConsoleToOps;
+  public final boolean chatToConsole;
+  public final boolean logMessages;
+  public final int localChatRadius;
+
+  public RuntimeSettings(PropertyStorage properties) {
+    maxPlayers = properties.getInt("maxPlayers");
+    serverDescription = properties.get("serverDescription");
+    showListOnConnect = properties.getBoolean("showListOnConnect");
+
+    useMsgFormats = properties.getBoolean("useMsgFormats");
+    msgWrap = properties.getBoolean("msgWrap");
+    msgFormat = properties.get("msgFormat");
+    msgTitleFormat = properties.get("msgTitleFormat");
+    msgForwardFormat = properties.get("msgForwardFormat");
+    forwardChat = properties.getBoolean("forwardChat");
+    forwardAllCommands = properties.getBoolean("forwardAllCommands");
+    chatConsoleToOps = properties.getBoolean("chatConsoleToOps");
+    chatToConsole = properties.getBoolean("chatToConsole");
+    logMessages = properties.getBoolean("logMessages");
+    localChatRadius = properties.getInt("localChatRadius");
+  }
+}
@@ -22,16 +22,27 @@ package simpleserver.config.xml;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+/*
+ * Readers query an immutable snapshot and never lock. Once the tree is built,
+ * add() and remove() publish a new snapshot that shares the built nodes and
+ * only lists the segments added or removed since; the nodes are rebuilt when
+ * that list grows past REBUILD_CHANGES. Writers are serialized.
+ */
 public class SegmentTree<E> {
-  private Node root;
+  private static final int REBUILD_CHANGES = 64;
+
+  private final AtomicReference<Snapshot> snapshot;
   private List<HyperSegment> segments = new LinkedList<HyperSegment>();
   private NodeCache cache;
   private boolean built = false;
@@ -39,44 +50,51 @@ public class SegmentTree<E> {
 
   public SegmentTree(int dimensions) {
     this.dimensions = dimensions;
+    snapshot = new AtomicReference<Snapshot>(new Snapshot(null));
   }
 
-  public void add(int[] start, int[] end, E object) {
-    segments.add(new HyperSegment(start, end, object));
+  public synchronized void add(int[] start, int[] end, E object) {
+    HyperSegment segment = new HyperSegment(start, end, object);
+    segments.add(segment);
     if (built) {
-      build();
+      publish(snapshot.get().with(segment));
     }
   }
 
-  public void remove(E object) {
+  public synchronized void remove(E object) {
     for (HyperSegment segment : segments) {
       if (segment.object == object) {
         segments.remove(segment);
         if (built) {
-          build();
+          publish(snapshot.get().without(segment));
         }
         return;
       }
     }
   }
 
-  public void build() {
+  public synchronized void build() {
     cache = new NodeCache();
-    root = build(segments, 0);
+    Node root = build(segments, 0);
     cache = null;
     built = true;
+    snapshot.set(new Snapshot(root));
   }
 
-  public List<E> get(int... point) {
-    return root.find(point);
+  private void publish(Snapshot next) {
+    if (next.changes() > REBUILD_CHANGES) {
+      build();
+    } else {
+      snapshot.set(next);
+    }
   }
 
-  public Set<E> overlaps(int[] start, int[] end) {
-    return overlaps(new HyperSegment(start, end, null));
+  public List<E> get(int... point) {
+    return snapshot.get().find(point);
   }
 
-  private Set<E> overlaps(HyperSegment segment) {
-    return root.overlaps(segment);
+  public Set<E> overlaps(int[] start, int[] end) {
+    return snapshot.get().overlaps(new HyperSegment(start, end, null));
   }
 
   private Node build(List<HyperSegment> segments, int dimension) {
@@ -88,8 +106,16 @@ public class SegmentTree<E> {
     TreeMap<Integer, Boolean> points = new TreeMap<Integer, Boolean>();
     for (HyperSegment hyperSegment : segments) {
       Segment segment = hyperSegment.segments[dimension];
-      points.put(segment.start, false);
-      points.put(segment.end, segment.start == segment.end);
+      // true marks a point that needs a leaf of its own, which must not be lost
+      // when another segment starts or ends there too
+      if (!points.containsKey(segment.start)) {
+        points.put(segment.start, false);
+      }
+      if (segment.start == segment.end) {
+        points.put(segment.end, true);
+      } else if (!points.containsKey(segment.end)) {
+        points.put(segment.end, false);
+      }
     }
 
     if (points.isEmpty()) {
@@ -142,6 +168,77 @@ public class SegmentTree<E> {
     return node;
   }
 
+  private class Snapshot {
+    final Node root;
+    // segments added to or removed from root since it was built
+    final List<HyperSegment> added;
+    final Set<E> removed;
+
+    Snapshot(Node root) {
+      this(root, Collections.<HyperSegment>emptyList(), Collections.<E>emptySet());
+    }
+
+    private Snapshot(Node root, List<HyperSegment> added, Set<E> removed) {
+      this.root = root;
+      this.added = added;
+      this.removed = removed;
+    }
+
+    int changes() {
+      return added.size() + removed.size();
+    }
+
+    Snapshot with(HyperSegment segment) {
+      List<HyperSegment> nextAdded = new ArrayList<HyperSegment>(added);
+      nextAdded.add(segment);
+      return new Snapshot(root, nextAdded, removed);
+    }
+
+    Snapshot without(HyperSegment segment) {
+      if (added.contains(segment)) {
+        List<HyperSegment> nextAdded = new ArrayList<HyperSegment>(added);
+        nextAdded.remove(segment);
+        return new Snapshot(root, nextAdded, removed);
+      }
+      Set<E> nextRemoved = Collections.newSetFromMap(new IdentityHashMap<E, Boolean>());
+      nextRemoved.addAll(removed);
+      nextRemoved.add(segment.object);
+      return new Snapshot(root, added, nextRemoved);
+    }
+
+    List<E> find(int[] point) {
+      List<E> list = new LinkedList<E>();
+      if (root != null) {
+        root.find(point, list, 0);
+      }
+      if (!removed.isEmpty()) {
+        list.removeAll(removed);
+      }
+      for (HyperSegment segment : added) {
+        if (segment.contains(point)) {
+          list.add(segment.object);
+        }
+      }
+      return list;
+    }
+
+    Set<E> overlaps(HyperSegment segment) {
+      Set<E> set = new HashSet<E>();
+      if (root != null) {
+        root.overlaps(segment, set, 0);
+      }
+      if (!removed.isEmpty()) {
+        set.removeAll(removed);
+      }
+      for (HyperSegment other : added) {
+        if (other.overlaps(segment)) {
+          set.add(other.object);
+        }
+      }
+      return set;
+    }
+  }
+
   private class Node {
     int start;
     int end;
@@ -170,12 +267,6 @@ public class SegmentTree<E> {
       }
     }
 
-    List<E> find(int[] point) {
-      List<E> list = new LinkedList<E>();
-      find(point, list, 0);
-      return list;
-    }
-
     void find(int[] point, List<E> list, int dimension) {
       if (point[dimension] > end || point[dimension] < start) {
         return;
@@ -196,12 +287,6 @@ public class SegmentTree<E> {
       }
     }
 
-    public Set<E> overlaps(HyperSegment segment) {
-      Set<E> set = new HashSet<E>();
-      overlaps(segment, set, 0);
-      return set;
-    }
-
     private void overlaps(HyperSegment segment, Set<E> set, int dimension) {
       if (segment.segments[dimension].start > end || segment.segments[dimension].end < start) {
         return;
@@ -252,6 +337,24 @@ public class SegmentTree<E> {
         }
       }
     }
+
+    boolean contains(int[] point) {
+      for (int d = 0; d < dimensions; d++) {
+        if (point[d] < segments[d].start || point[d] > segments[d].end) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean overlaps(HyperSegment other) {
+      for (int d = 0; d < dimensions; d++) {
+        if (other.segments[d].start > segments[d].end || other.segments[d].end < segments[d].start) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 
   private class Segment {
@@ -53,14 +53,14 @@ public class GlobalChat extends AbstractChat {
     String prefix = "";
     char color = 'f';
     String title = "";
-    String format = server.config.properties.get("msgFormat");
+    String format = server.settings.msgFormat;
     Group group = sender.getGroup();
 
     if (group != null) {
       color = group.color;
       if (group.showTitle) {
         title = group.name;
-        format = server.config.properties.get("msgTitleFormat");
+        format = server.settings.msgTitleFormat;
       }
     }
 
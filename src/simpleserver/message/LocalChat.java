@@ -21,8 +21,12 @@
 package simpleserver.message;
 
 import static simpleserver.lang.Translations.t;
+
+import java.util.List;
+
 import simpleserver.Color;
 import simpleserver.Player;
+import simpleserver.PlayerList;
 
 public class LocalChat extends AbstractChat {
 
@@ -31,13 +35,24 @@ public class LocalChat extends AbstractChat {
 
   public LocalChat(Player sender) {
     super(sender);
-    localChatRadius = sender.getServer().config.properties.getInt("localChatRadius");
+    localChatRadius = sender.getServer().settings.localChatRadius;
     chatRoom = LOCAL_CHAT;
   }
 
+  /*
+   * Only players in the sender's dimension hear local chat. The distance
+   * used to be measured across dimensions, so a player in the Nether could
+   * hear one at the same coordinates on the surface.
+   */
+  @Override
+  public List<Player> getRecievers(PlayerList playerList) {
+    return sender.getServer().playerGrid.near(sender, localChatRadius);
+  }
+
   @Override
   protected boolean sendToPlayer(Player reciever) {
-    return (sender.distanceTo(reciever) < localChatRadius);
+    // getRecievers only returns players within the radius
+    return true;
   }
 
   @Override
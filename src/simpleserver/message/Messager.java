@@ -24,6 +24,8 @@ import java.util.LinkedList;
 
 import simpleserver.Player;
 import simpleserver.Server;
+import simpleserver.config.xml.RuntimeSettings;
+import simpleserver.stream.EncodedMessage;
 import simpleserver.util.RingCache;
 
 public class Messager {
@@ -39,22 +41,24 @@ public class Messager {
   public void propagate(Chat chat, String message, boolean build) {
     int recieverCount = 0;
     String builtMessage = build ? chat.buildMessage(message) : message;
+    EncodedMessage encoded = EncodedMessage.encode(builtMessage);
 
     for (Player reciever : chat.getRecievers(server.playerList)) {
-      reciever.addMessage(builtMessage);
+      reciever.addMessage(encoded);
 
       if (!reciever.equals(chat.getSender())) {
         recieverCount++;
       }
     }
 
-    if (server.config.properties.getBoolean("forwardChat")) {
+    RuntimeSettings settings = server.settings;
+    if (settings.forwardChat) {
       forwardToServer(chat, message);
     }
-    if (server.config.properties.getBoolean("chatToConsole")) {
+    if (settings.chatToConsole) {
       writeToConsole(builtMessage);
     }
-    if (server.config.properties.getBoolean("logMessages")) {
+    if (settings.logMessages) {
       server.messageLog(chat, message);
     }
 
@@ -70,7 +74,7 @@ public class Messager {
 
   private void forwardToServer(Chat chat, String message) {
     Player sender = chat.getSender();
-    String forwardMessage = String.format(server.config.properties.get("msgForwardFormat"), chat, message);
+    String forwardMessage = String.format(server.settings.msgForwardFormat, chat, message);
 
     for (String msgPart : wrapMessage(forwardMessage)) {
       forwardedMessages.put(String.format("<%s> %s", sender.getName(), msgPart));
@@ -21,8 +21,6 @@
 package simpleserver.nbt;
 
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,11 +29,28 @@ import java.util.zip.GZIPOutputStream;
 
 public class GZipNBTFile extends NBTFile {
   public GZipNBTFile(String filename) throws Exception {
-    super(new GZIPInputStream(new FileInputStream(filename)));
+    this(filename, false);
+  }
+
+  /*
+   * A lazy file decodes compounds (other than the root) only when they are
+   * accessed, and writes the untouched ones back as they were.
+   */
+  public GZipNBTFile(String filename, boolean lazy) throws Exception {
+    InputStream input = new FileInputStream(filename);
+    try {
+      if (lazy) {
+        loadLazily(new GZIPInputStream(input, BUFFER_SIZE));
+      } else {
+        load(new GZIPInputStream(input, BUFFER_SIZE));
+      }
+    } finally {
+      input.close();
+    }
   }
 
   public GZipNBTFile(InputStream in) throws Exception {
-    super(new GZIPInputStream(in));
+    super(new GZIPInputStream(in, BUFFER_SIZE));
   }
 
   public GZipNBTFile() {
@@ -43,7 +58,7 @@ public class GZipNBTFile extends NBTFile {
   }
 
   @Override
-  protected OutputStream getOutputStream(String filename) throws FileNotFoundException, IOException {
-    return new GZIPOutputStream(new FileOutputStream(filename));
+  protected OutputStream getOutputStream(OutputStream output) throws IOException {
+    return new GZIPOutputStream(output, BUFFER_SIZE);
   }
 }
@@ -20,14 +20,14 @@
  */
 package simpleserver.nbt;
 
-import static simpleserver.stream.StreamTunnel.ENCHANTABLE;
-
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import simpleserver.stream.Packets;
+
 public class Inventory {
   private HashMap<Byte, Slot> slots;;
 
@@ -168,7 +168,7 @@ public class Inventory {
       out.writeShort(id);
       out.writeByte(count);
       out.writeShort(damage);
-      if (ENCHANTABLE.contains(id)) {
+      if (Packets.isEnchantable(id)) {
         out.writeShort(-1);
       }
 
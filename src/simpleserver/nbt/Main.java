@@ -22,6 +22,8 @@ package simpleserver.nbt;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Map;
+import java.util.zip.ZipException;
 
 public class Main {
   public static void main(String[] args) {
@@ -35,6 +37,11 @@ public class Main {
       return;
     }
 
+    if (args.length >= 3 && args[1].toLowerCase().equals("read")) {
+      extract(args[0], args[2]);
+      return;
+    }
+
     NBTFile file = null;
 
     try {
@@ -70,6 +77,30 @@ public class Main {
     }
   }
 
+  // reads a single key without loading the rest of the file
+  private static void extract(String filename, String path) {
+    Map<String, NBTag> tags;
+    try {
+      try {
+        tags = NBTExtractor.extractGZip(filename, path);
+      } catch (ZipException g) {
+        tags = NBTExtractor.extract(filename, path);
+      }
+    } catch (FileNotFoundException e) {
+      System.out.println("Error: No such file or dictionary");
+      return;
+    } catch (IOException e) {
+      System.out.println("Error: " + e + " (" + e.getMessage() + ")");
+      return;
+    }
+
+    if (tags.containsKey(path)) {
+      System.out.println(tags.get(path));
+    } else {
+      System.out.println("Error: " + new NoSuchKeyException(path).getMessage());
+    }
+  }
+
   private static void read(String[] args, NBTFile file) {
     NBTag tag = file.root();
     if (args.length >= 3) {
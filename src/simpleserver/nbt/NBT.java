@@ -65,13 +65,31 @@ public enum NBT {
   }
 
   protected static NBTag loadTag(DataInputStream in, boolean named, byte type) throws Exception {
-    if (type < 0 || type > 10) {
-      throw new Exception("Unknown NBT type");
-    }
-    try {
-      return values()[type].c.getDeclaredConstructor(DataInputStream.class, Boolean.class).newInstance(in, named);
-    } catch (Exception e) {
-      throw new Exception("Something went horribly wrong: " + e.getMessage());
+    switch (type) {
+      case 0:
+        return new NBTEnd(in);
+      case 1:
+        return new NBTByte(in, named);
+      case 2:
+        return new NBTShort(in, named);
+      case 3:
+        return new NBTInt(in, named);
+      case 4:
+        return new NBTLong(in, named);
+      case 5:
+        return new NBTFloat(in, named);
+      case 6:
+        return new NBTDouble(in, named);
+      case 7:
+        return new NBTArray(in, named);
+      case 8:
+        return new NBTString(in, named);
+      case 9:
+        return new NBTList<NBTag>(in, named);
+      case 10:
+        return new NBTCompound(in, named);
+      default:
+        throw new Exception("Unknown NBT type");
     }
   }
 }
@@ -77,9 +77,7 @@ public class NBTArray extends NBTag {
   protected void loadValue(DataInputStream in) throws IOException {
     int length = in.readInt();
     value = new byte[length];
-    for (int i = 0; i < length; i++) {
-      value[i] = in.readByte();
-    }
+    in.readFully(value);
   }
 
   @Override
@@ -20,6 +20,8 @@
  */
 package simpleserver.nbt;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -27,7 +29,12 @@ import java.util.HashMap;
 import java.util.Set;
 
 public class NBTCompound extends NBTag {
+  private static final int[] SIZES = { 0, 1, 2, 4, 8, 4, 8 };
+  private static final int COPY_BUFFER = 512;
+
   private HashMap<String, NBTag> value;
+  // the encoded children of a compound that hasn't been decoded yet
+  private volatile byte[] raw;
 
   NBTCompound(DataInputStream in, Boolean named) throws Exception {
     super(in, named);
@@ -43,6 +50,11 @@ public class NBTCompound extends NBTag {
     value = new HashMap<String, NBTag>();
   }
 
+  private NBTCompound(String name, byte[] raw) {
+    super(name);
+    this.raw = raw;
+  }
+
   @Override
   protected byte id() {
     return 10;
@@ -50,7 +62,7 @@ public class NBTCompound extends NBTag {
 
   @Override
   HashMap<String, NBTag> get() {
-    return value;
+    return value();
   }
 
   @Override
@@ -59,27 +71,27 @@ public class NBTCompound extends NBTag {
   }
 
   public int size() {
-    return value.size();
+    return value().size();
   }
 
   public Set<String> names() {
-    return value.keySet();
+    return value().keySet();
   }
 
   public boolean containsKey(String name) {
-    return value.containsKey(name);
+    return value().containsKey(name);
   }
 
   public NBTag get(String name) {
-    return value.get(name);
+    return value().get(name);
   }
 
   public void put(NBTag tag) {
-    value.put(tag.name.get(), tag);
+    value().put(tag.name.get(), tag);
   }
 
   public void remove(String name) {
-    value.remove(name);
+    value().remove(name);
   }
 
   public void rename(String name, String rename) {
@@ -90,71 +102,220 @@ public class NBTCompound extends NBTag {
   }
 
   public NBTByte getByte(String name) {
-    return (NBTByte) value.get(name);
+    return (NBTByte) value().get(name);
   }
 
   public NBTShort getShort(String name) {
-    return (NBTShort) value.get(name);
+    return (NBTShort) value().get(name);
   }
 
   public NBTInt getInt(String name) {
-    return (NBTInt) value.get(name);
+    return (NBTInt) value().get(name);
   }
 
   public NBTLong getLong(String name) {
-    return (NBTLong) value.get(name);
+    return (NBTLong) value().get(name);
   }
 
   public NBTFloat getFloat(String name) {
-    return (NBTFloat) value.get(name);
+    return (NBTFloat) value().get(name);
   }
 
   public NBTDouble getDouble(String name) {
-    return (NBTDouble) value.get(name);
+    return (NBTDouble) value().get(name);
   }
 
   public NBTArray getArray(String name) {
-    return (NBTArray) value.get(name);
+    return (NBTArray) value().get(name);
   }
 
   public NBTString getString(String name) {
-    return (NBTString) value.get(name);
+    return (NBTString) value().get(name);
   }
 
   @SuppressWarnings("unchecked")
   public NBTList<NBTag> getList(String name) {
-    return (NBTList<NBTag>) value.get(name);
+    return (NBTList<NBTag>) value().get(name);
   }
 
   public NBTCompound getCompound(String name) {
-    return (NBTCompound) value.get(name);
+    return (NBTCompound) value().get(name);
+  }
+
+  /*
+   * A compound that saves the given encoded children, as returned by
+   * encodedChildren(), without decoding them unless somebody looks inside.
+   */
+  public static NBTCompound encoded(String name, byte[] children) {
+    return new NBTCompound(name, children);
+  }
+
+  // the encoded children, followed by the end tag
+  public byte[] encodedChildren() throws IOException {
+    byte[] encoded = raw;
+    if (encoded != null) {
+      return encoded;
+    }
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buffer);
+    saveValue(out);
+    out.flush();
+    return buffer.toByteArray();
+  }
+
+  // writes this compound on its own, the way NBTFile writes its root
+  public void write(DataOutputStream out) throws IOException {
+    save(out);
+  }
+
+  public static NBTCompound read(DataInputStream in) throws Exception {
+    return load(in);
+  }
+
+  /*
+   * Reads a root compound whose child compounds are decoded on first access.
+   * Subtrees that are never accessed are saved again exactly as they were read.
+   */
+  static NBTCompound loadLazily(DataInputStream in) throws Exception {
+    if (in.readByte() != NBT.COMPOUND.id()) {
+      throw new Exception("NBT stream has the wrong format");
+    }
+    NBTCompound root = new NBTCompound(new NBTString(in, false).get());
+    root.value = loadChildren(in, true);
+    return root;
   }
 
   @Override
   protected void loadValue(DataInputStream in) throws Exception {
-    value = new HashMap<String, NBTag>();
+    value = loadChildren(in, false);
+  }
+
+  /*
+   * Reads the children of a compound. When lazy, child compounds are only
+   * copied as they are and decoded the first time somebody looks at them.
+   */
+  private static HashMap<String, NBTag> loadChildren(DataInputStream in, boolean lazy) throws Exception {
+    HashMap<String, NBTag> children = new HashMap<String, NBTag>();
     while (true) {
-      NBTag tag = NBT.loadTag(in, true);
-      if (tag instanceof NBTEnd) {
+      byte type = in.readByte();
+      if (type == NBT.END.id()) {
         break;
       }
-      value.put(tag.name.get(), tag);
+      if (lazy && type == NBT.COMPOUND.id()) {
+        String name = new NBTString(in, false).get();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        copyValue(in, new DataOutputStream(buffer), type, new byte[COPY_BUFFER]);
+        children.put(name, new NBTCompound(name, buffer.toByteArray()));
+      } else {
+        NBTag tag = NBT.loadTag(in, true, type);
+        children.put(tag.name.get(), tag);
+      }
     }
+    return children;
+  }
+
+  // copies one encoded value, checking its structure on the way
+  private static void copyValue(DataInputStream in, DataOutputStream out, byte type, byte[] buffer) throws IOException {
+    switch (type) {
+      case 1: // byte
+      case 2: // short
+      case 3: // int
+      case 4: // long
+      case 5: // float
+      case 6: // double
+        copy(in, out, SIZES[type], buffer);
+        break;
+      case 7: // byte array
+        int bytes = in.readInt();
+        out.writeInt(bytes);
+        copy(in, out, bytes, buffer);
+        break;
+      case 8: // string
+        int length = in.readUnsignedShort();
+        out.writeShort(length);
+        copy(in, out, length, buffer);
+        break;
+      case 9: // list
+        byte elementType = in.readByte();
+        int elements = in.readInt();
+        out.writeByte(elementType);
+        out.writeInt(elements);
+        if (elementType > 0 && elementType < SIZES.length) {
+          copy(in, out, (long) SIZES[elementType] * elements, buffer);
+        } else {
+          for (int i = 0; i < elements; i++) {
+            copyValue(in, out, elementType, buffer);
+          }
+        }
+        break;
+      case 10: // compound
+        while (true) {
+          byte childType = in.readByte();
+          out.writeByte(childType);
+          if (childType == NBT.END.id()) {
+            break;
+          }
+          copyValue(in, out, (byte) 8, buffer);
+          copyValue(in, out, childType, buffer);
+        }
+        break;
+      default:
+        throw new IOException("Unknown NBT type");
+    }
+  }
+
+  private static void copy(DataInputStream in, DataOutputStream out, long bytes, byte[] buffer) throws IOException {
+    if (bytes < 0) {
+      throw new IOException("Negative length");
+    }
+    while (bytes > 0) {
+      int chunk = (int) Math.min(bytes, buffer.length);
+      in.readFully(buffer, 0, chunk);
+      out.write(buffer, 0, chunk);
+      bytes -= chunk;
+    }
+  }
+
+  private HashMap<String, NBTag> value() {
+    if (raw != null) {
+      decode();
+    }
+    return value;
+  }
+
+  private synchronized void decode() {
+    byte[] encoded = raw;
+    if (encoded == null) {
+      return;
+    }
+    try {
+      value = loadChildren(new DataInputStream(new ByteArrayInputStream(encoded)), true);
+    } catch (Exception e) {
+      // the bytes were checked when they were copied
+      throw new IllegalStateException("Corrupt NBT compound " + name.get(), e);
+    }
+    raw = null;
   }
 
   @Override
   protected void saveValue(DataOutputStream out) throws IOException {
-    for (NBTag tag : value.values()) {
+    byte[] encoded = raw;
+    if (encoded != null) {
+      // never looked at, so it can't have changed
+      out.write(encoded);
+      return;
+    }
+    for (NBTag tag : value().values()) {
       tag.save(out);
     }
-    new NBTEnd().save(out);
+    out.writeByte(NBT.END.id());
   }
 
   @Override
   protected String valueToString(int level) {
     StringBuilder string = new StringBuilder();
     string.append("{\n");
-    for (NBTag tag : value.values()) {
+    for (NBTag tag : value().values()) {
       string.append(tag.toString(level + 1) + "\n");
     }
     string.append(indent(level));
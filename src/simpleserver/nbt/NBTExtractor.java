@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.nbt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Reads single tags out of an NBT stream without building the whole tree.
+ * Paths use the same syntax as the NBT tool (Data.SpawnX, Inventory/0/id).
+ * Only the requested tags are decoded; everything else is skipped by its
+ * length, and reading stops as soon as all of them were found.
+ */
+public class NBTExtractor {
+  private static final int[] SIZES = { 0, 1, 2, 4, 8, 4, 8 };
+
+  private final Map<String, String> wanted = new HashMap<String, String>();
+  private final Set<String> prefixes = new HashSet<String>();
+  private final Map<String, NBTag> found = new HashMap<String, NBTag>();
+  private DataInputStream in;
+
+  private NBTExtractor(String... paths) {
+    for (String path : paths) {
+      String[] keys = path.split("/|\\.");
+      StringBuilder prefix = new StringBuilder();
+      for (int i = 0; i < keys.length - 1; i++) {
+        if (i > 0) {
+          prefix.append('.');
+        }
+        prefix.append(keys[i]);
+        prefixes.add(prefix.toString());
+      }
+      wanted.put(join(keys), path);
+    }
+  }
+
+  /*
+   * Returns the tags at the given paths, keyed by path. Paths that don't
+   * exist are missing from the result.
+   */
+  public static Map<String, NBTag> extract(InputStream input, String... paths) throws IOException {
+    NBTExtractor extractor = new NBTExtractor(paths);
+    extractor.in = new DataInputStream(new BufferedInputStream(input, NBTFile.BUFFER_SIZE));
+    extractor.readRoot();
+    return extractor.found;
+  }
+
+  public static Map<String, NBTag> extractGZip(String filename, String... paths) throws IOException {
+    InputStream input = new FileInputStream(filename);
+    try {
+      return extract(new GZIPInputStream(input, NBTFile.BUFFER_SIZE), paths);
+    } finally {
+      input.close();
+    }
+  }
+
+  public static Map<String, NBTag> extract(String filename, String... paths) throws IOException {
+    InputStream input = new FileInputStream(filename);
+    try {
+      return extract(input, paths);
+    } finally {
+      input.close();
+    }
+  }
+
+  private void readRoot() throws IOException {
+    if (in.readByte() != NBT.COMPOUND.id()) {
+      throw new IOException("NBT stream has the wrong format");
+    }
+    skip(in.readUnsignedShort());
+    readCompound("");
+  }
+
+  // returns false once everything was found
+  private boolean readCompound(String path) throws IOException {
+    while (true) {
+      byte type = in.readByte();
+      if (type == NBT.END.id()) {
+        return true;
+      }
+      if (!read(type, child(path, readName()))) {
+        return false;
+      }
+    }
+  }
+
+  private boolean readList(String path) throws IOException {
+    byte type = in.readByte();
+    int length = in.readInt();
+    for (int i = 0; i < length; i++) {
+      if (!read(type, child(path, Integer.toString(i)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean read(byte type, String path) throws IOException {
+    String requested = wanted.get(path);
+    if (requested != null) {
+      found.put(requested, load(type, path));
+      return found.size() < wanted.size();
+    } else if (prefixes.contains(path) && type == NBT.COMPOUND.id()) {
+      return readCompound(path);
+    } else if (prefixes.contains(path) && type == NBT.LIST.id()) {
+      return readList(path);
+    }
+    skipValue(type);
+    return true;
+  }
+
+  private NBTag load(byte type, String path) throws IOException {
+    NBTag tag;
+    try {
+      tag = NBT.loadTag(in, false, type);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e.getMessage());
+    }
+    tag.rename(path.substring(path.lastIndexOf('.') + 1));
+    return tag;
+  }
+
+  private void skipValue(byte type) throws IOException {
+    if (type > 0 && type < SIZES.length) {
+      skip(SIZES[type]);
+      return;
+    }
+    switch (type) {
+      case 7: // byte array
+        skip(in.readInt());
+        break;
+      case 8: // string
+        skip(in.readUnsignedShort());
+        break;
+      case 9: // list
+        byte elementType = in.readByte();
+        int length = in.readInt();
+        if (elementType > 0 && elementType < SIZES.length) {
+          skip((long) SIZES[elementType] * length);
+        } else {
+          for (int i = 0; i < length; i++) {
+            skipValue(elementType);
+          }
+        }
+        break;
+      case 10: // compound
+        while (true) {
+          byte childType = in.readByte();
+          if (childType == NBT.END.id()) {
+            break;
+          }
+          skip(in.readUnsignedShort());
+          skipValue(childType);
+        }
+        break;
+      default:
+        throw new IOException("Unknown NBT type");
+    }
+  }
+
+  private void skip(long bytes) throws IOException {
+    while (bytes > 0) {
+      long skipped = in.skip(bytes);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException();
+        }
+        skipped = 1;
+      }
+      bytes -= skipped;
+    }
+  }
+
+  private String readName() throws IOException {
+    byte[] bytes = new byte[in.readUnsignedShort()];
+    in.readFully(bytes);
+    return new String(bytes);
+  }
+
+  private static String child(String path, String name) {
+    return path.length() == 0 ? name : path + "." + name;
+  }
+
+  private static String join(String[] keys) {
+    StringBuilder path = new StringBuilder();
+    for (String key : keys) {
+      if (path.length() > 0) {
+        path.append('.');
+      }
+      path.append(key);
+    }
+    return path.toString();
+  }
+}
@@ -20,16 +20,18 @@
  */
 package simpleserver.nbt;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 public class NBTFile {
+  static final int BUFFER_SIZE = 16384;
 
   private NBTCompound root;
 
@@ -38,7 +40,12 @@ public class NBTFile {
   }
 
   public NBTFile(String filename) throws Exception {
-    this(new FileInputStream(filename));
+    InputStream input = new FileInputStream(filename);
+    try {
+      load(input);
+    } finally {
+      input.close();
+    }
   }
 
   public NBTFile(InputStream input) throws Exception {
@@ -49,18 +56,28 @@ public class NBTFile {
     return root;
   }
 
-  private void load(InputStream input) throws Exception {
-    root = NBTag.load(new DataInputStream(input));
+  protected void load(InputStream input) throws Exception {
+    root = NBTag.load(new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE)));
+  }
+
+  // see NBTCompound.loadLazily
+  protected void loadLazily(InputStream input) throws Exception {
+    root = NBTCompound.loadLazily(new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE)));
   }
 
   public void save(String filename) throws IOException {
-    DataOutputStream out = new DataOutputStream(getOutputStream(filename));
+    save(new FileOutputStream(filename));
+  }
+
+  // closes the stream when done
+  public void save(OutputStream output) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(getOutputStream(output), BUFFER_SIZE));
     root.save(out);
     out.close();
   }
 
-  protected OutputStream getOutputStream(String filename) throws FileNotFoundException, IOException {
-    return new FileOutputStream(filename);
+  protected OutputStream getOutputStream(OutputStream output) throws IOException {
+    return output;
   }
 
   @Override
@@ -64,9 +64,7 @@ public class NBTString extends NBTag {
   protected void loadValue(DataInputStream in) throws IOException {
     int length = in.readShort();
     byte[] bytes = new byte[length];
-    for (int i = 0; i < length; i++) {
-      bytes[i] = in.readByte();
-    }
+    in.readFully(bytes);
     value = new String(bytes);
   }
 
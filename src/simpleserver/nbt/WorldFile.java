@@ -21,34 +21,39 @@
 package simpleserver.nbt;
 
 import java.io.File;
+import java.util.Map;
 
 import simpleserver.Coordinate;
 import simpleserver.Coordinate.Dimension;
 
 public class WorldFile {
+  private static final String SEED = "Data.RandomSeed";
+  private static final String SPAWN_X = "Data.SpawnX";
+  private static final String SPAWN_Y = "Data.SpawnY";
+  private static final String SPAWN_Z = "Data.SpawnZ";
+
   private String filename;
-  private NBTCompound data;
+  private Map<String, NBTag> data;
 
   public WorldFile(String world) {
     filename = world + File.separator + "level.dat";
     try {
-      NBTFile nbt = new GZipNBTFile(filename);
-      data = nbt.root().getCompound("Data");
+      data = NBTExtractor.extractGZip(filename, SEED, SPAWN_X, SPAWN_Y, SPAWN_Z);
     } catch (Exception e) {
       System.out.println("[SimpleServer] Can't read level.dat");
     }
   }
 
   public long seed() {
-    return data.getLong("RandomSeed").get();
+    return ((NBTLong) data.get(SEED)).get();
   }
 
   public Coordinate spawnPoint() {
     int x, y, z;
     try {
-      x = data.getInt("SpawnX").get();
-      y = data.getInt("SpawnY").get();
-      z = data.getInt("SpawnZ").get();
+      x = ((NBTInt) data.get(SPAWN_X)).get();
+      y = ((NBTInt) data.get(SPAWN_Y)).get();
+      z = ((NBTInt) data.get(SPAWN_Z)).get();
     } catch (Exception e) {
       x = z = 0;
       y = 62;
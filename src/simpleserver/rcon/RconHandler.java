@@ -26,8 +26,10 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
+import simpleserver.Player;
 import simpleserver.Server;
 
 public class RconHandler implements Runnable {
@@ -219,6 +221,25 @@ public class RconHandler implements Runnable {
     return console;
   }
 
+  private String getTraffic(String name) {
+    List<String> lines;
+    if (name == null) {
+      lines = server.traffic.report();
+    } else {
+      Player player = server.playerList.findPlayer(name);
+      if (player == null) {
+        return "Error: Player not online";
+      }
+      lines = server.traffic.report(player);
+    }
+
+    StringBuilder traffic = new StringBuilder();
+    for (String line : lines) {
+      traffic.append(line).append("\n");
+    }
+    return traffic.toString();
+  }
+
   protected String parsePacket(String command) throws IOException,
       InterruptedException {
     String[] tokens = command.split(" ");
@@ -235,7 +256,8 @@ public class RconHandler implements Runnable {
       if (tokens[0].equalsIgnoreCase("help")) {
         if (tokens.length > 1) {
           if (tokens[1].equalsIgnoreCase("get")) {
-            return "Resources:\n" + "console    Shows console output\n";
+            return "Resources:\n" + "console    Shows console output\n"
+                + "traffic [player]    Shows tunnelled traffic by packet type\n";
           }
         }
         return "Commands:\n" + "help    Shows this message\n"
@@ -246,6 +268,9 @@ public class RconHandler implements Runnable {
           if (tokens[1].equalsIgnoreCase("console")) {
             return getConsole();
           }
+          if (tokens[1].equalsIgnoreCase("traffic")) {
+            return getTraffic(tokens.length > 2 ? tokens[2] : null);
+          }
         }
         return "Error: No Command";
       }
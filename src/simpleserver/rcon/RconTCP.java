@@ -44,8 +44,7 @@ public class RconTCP {
     }
 
     lastRead = System.currentTimeMillis();
-    t1 = new Thread() {
-      @Override
+    t1 = server.threads.start(new Runnable() {
       public void run() {
         if (testTimeout()) {
           close();
@@ -58,11 +57,10 @@ public class RconTCP {
           return;
         }
       }
-    };
-    t1.start();
+    }, "RconTimeout");
 
     try {
-      new Thread(new RconHandler(socket, this, server)).start();
+      server.threads.start(new RconHandler(socket, this, server), "RconHandler");
     } catch (IOException e) {
       e.printStackTrace();
       close();
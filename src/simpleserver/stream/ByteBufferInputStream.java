@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+class ByteBufferInputStream extends InputStream {
+  private static final int INITIAL_CAPACITY = 8192;
+
+  private ByteBuffer buffer;
+  private long consumed;
+
+  ByteBufferInputStream() {
+    buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+  }
+
+  long consumed() {
+    return consumed;
+  }
+
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  // expects the buffer in write mode, as left by compact()
+  void grow(int maximum) {
+    int capacity = Math.min(buffer.capacity() * 2, maximum);
+    ByteBuffer grown = ByteBuffer.allocate(capacity);
+    buffer.flip();
+    grown.put(buffer);
+    buffer = grown;
+  }
+
+  void passTo(ByteBufferOutputStream out, int bytes) throws EOFException {
+    if (buffer.remaining() < bytes) {
+      throw new EOFException();
+    }
+    int limit = buffer.limit();
+    buffer.limit(buffer.position() + bytes);
+    out.write(buffer);
+    buffer.limit(limit);
+    consumed += bytes;
+  }
+
+  @Override
+  public int read() {
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    consumed++;
+    return buffer.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    int remaining = buffer.remaining();
+    if (remaining == 0) {
+      return -1;
+    }
+    len = Math.min(len, remaining);
+    buffer.get(b, off, len);
+    consumed += len;
+    return len;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skipped = (int) Math.min(n, buffer.remaining());
+    buffer.position(buffer.position() + skipped);
+    consumed += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+class ByteBufferOutputStream extends OutputStream {
+  private static final int INITIAL_CAPACITY = 8192;
+
+  private ByteBuffer buffer;
+
+  ByteBufferOutputStream() {
+    buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+  }
+
+  boolean isEmpty() {
+    return buffer.position() == 0;
+  }
+
+  int size() {
+    return buffer.position();
+  }
+
+  int writeTo(WritableByteChannel channel) throws IOException {
+    buffer.flip();
+    try {
+      return channel.write(buffer);
+    } finally {
+      buffer.compact();
+    }
+  }
+
+  private void ensureCapacity(int additional) {
+    if (buffer.remaining() < additional) {
+      int capacity = buffer.capacity() * 2;
+      while (capacity - buffer.position() < additional) {
+        capacity *= 2;
+      }
+      ByteBuffer grown = ByteBuffer.allocate(capacity);
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+  }
+
+  void write(ByteBuffer source) {
+    ensureCapacity(source.remaining());
+    buffer.put(source);
+  }
+
+  @Override
+  public void write(int b) {
+    ensureCapacity(1);
+    buffer.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    ensureCapacity(len);
+    buffer.put(b, off, len);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+/*
+ * Classifies chat lines sent by the Minecraft server in a single pass over
+ * the string, without regular expressions and without allocating.
+ *
+ * Join and leave notices (a color code followed by "Name joined the game.")
+ * are found anywhere in the raw line. Player chat ("<Name> text") and console
+ * chat ("(CONSOLE: text)") are recognized on the line with color codes
+ * removed, which the scanner does on the fly by skipping them.
+ *
+ * One scanner is used by one tunnel thread; name() refers to the last scan.
+ */
+final class ChatScanner {
+  enum Kind {
+    JOIN, LEAVE, PLAYER_CHAT, CONSOLE_CHAT, OTHER
+  }
+
+  private static final char COLOR = '\u00a7';
+  private static final String JOINED = " joined the game";
+  private static final String LEFT = " left the game";
+  private static final String CONSOLE = "(CONSOLE:";
+
+  // states of the color-stripped line
+  private static final int START = 0;
+  private static final int PLAYER_NAME = 1;
+  private static final int PLAYER_SPACE = 2;
+  private static final int PLAYER_TEXT = 3;
+  private static final int PLAYER_BREAK = 4;
+  private static final int PLAYER_END = 5;
+  private static final int CONSOLE_PREFIX = 6;
+  private static final int CONSOLE_TEXT = 7;
+  private static final int NONE = 8;
+
+  private String message;
+  private int nameStart;
+  private int nameEnd;
+
+  Kind scan(String message) {
+    this.message = message;
+    int length = message.length();
+    int state = START;
+    int matched = 0; // chars of the player name or console prefix seen so far
+    char last = 0;
+    char breakChar = 0;
+
+    int i = 0;
+    while (i < length) {
+      char c = message.charAt(i);
+      if (c == COLOR) {
+        Kind kind = joinOrLeave(i, length);
+        if (kind != null) {
+          return kind;
+        }
+        if (i + 1 < length && isColorCode(message.charAt(i + 1))) {
+          i += 2;
+          continue;
+        }
+      } else if (state == NONE) {
+        // only join notices are left to find
+        i = message.indexOf(COLOR, i);
+        if (i < 0) {
+          break;
+        }
+        continue;
+      }
+      i++;
+
+      switch (state) {
+        case START:
+          if (c == '<') {
+            state = PLAYER_NAME;
+          } else if (c == '(') {
+            state = CONSOLE_PREFIX;
+            matched = 1;
+          } else {
+            state = NONE;
+          }
+          break;
+
+        case PLAYER_NAME:
+          if (c != '>') {
+            matched++;
+          } else if (matched > 0) {
+            state = PLAYER_SPACE;
+          } else {
+            state = NONE;
+          }
+          break;
+
+        case PLAYER_SPACE:
+          state = c == ' ' ? PLAYER_TEXT : NONE;
+          break;
+
+        case PLAYER_TEXT:
+          if (isLineBreak(c)) {
+            state = PLAYER_BREAK;
+            breakChar = c;
+          }
+          break;
+
+        case PLAYER_BREAK:
+          // the text may only end in a single line break
+          state = breakChar == '\r' && c == '\n' ? PLAYER_END : NONE;
+          break;
+
+        case PLAYER_END:
+          state = NONE;
+          break;
+
+        case CONSOLE_PREFIX:
+          if (c != CONSOLE.charAt(matched)) {
+            state = NONE;
+          } else if (++matched == CONSOLE.length()) {
+            state = CONSOLE_TEXT;
+          }
+          break;
+
+        case CONSOLE_TEXT:
+          if (isLineBreak(c)) {
+            state = NONE;
+          }
+          break;
+      }
+      last = c;
+    }
+
+    if (state == PLAYER_TEXT || state == PLAYER_BREAK || state == PLAYER_END) {
+      return Kind.PLAYER_CHAT;
+    } else if (state == CONSOLE_TEXT && last == ')') {
+      return Kind.CONSOLE_CHAT;
+    }
+    return Kind.OTHER;
+  }
+
+  // name of the player who joined or left
+  String name() {
+    return message.substring(nameStart, nameEnd);
+  }
+
+  // a color sign, any character, a name and " joined/left the game" plus one more character
+  private Kind joinOrLeave(int start, int length) {
+    if (start + 1 >= length || isLineBreak(message.charAt(start + 1))) {
+      return null;
+    }
+    int end = start + 2;
+    while (end < length && isNameChar(message.charAt(end))) {
+      end++;
+    }
+
+    Kind kind;
+    int after;
+    if (message.startsWith(JOINED, end)) {
+      kind = Kind.JOIN;
+      after = end + JOINED.length();
+    } else if (message.startsWith(LEFT, end)) {
+      kind = Kind.LEAVE;
+      after = end + LEFT.length();
+    } else {
+      return null;
+    }
+    if (after >= length || isLineBreak(message.charAt(after))) {
+      return null;
+    }
+
+    nameStart = start + 2;
+    nameEnd = end;
+    return kind;
+  }
+
+  private static boolean isColorCode(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+  }
+
+  private static boolean isNameChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || c == '_';
+  }
+
+  // characters that end a line for the . of a regular expression
+  private static boolean isLineBreak(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+}
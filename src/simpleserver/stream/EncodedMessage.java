@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A chat message wrapped into lines and encoded as 0x03 packets, ready to be
+ * written by any number of tunnels. Broadcasts are encoded once and the same
+ * instance is queued for every receiver.
+ */
+public final class EncodedMessage {
+  static final int MESSAGE_SIZE = 60;
+
+  private final byte[] packets;
+  private final int count;
+
+  private EncodedMessage(byte[] packets, int count) {
+    this.packets = packets;
+    this.count = count;
+  }
+
+  public static EncodedMessage encode(String message) {
+    List<String> lines = new ArrayList<String>(1);
+    wrap(message, lines);
+
+    int size = 0;
+    for (String line : lines) {
+      size += 3 + 2 * line.length();
+    }
+    byte[] packets = new byte[size];
+    int position = 0;
+    for (String line : lines) {
+      int length = line.length();
+      packets[position++] = 0x03;
+      packets[position++] = (byte) (length >>> 8);
+      packets[position++] = (byte) length;
+      for (int i = 0; i < length; i++) {
+        char c = line.charAt(i);
+        packets[position++] = (byte) (c >>> 8);
+        packets[position++] = (byte) c;
+      }
+    }
+    return new EncodedMessage(packets, lines.size());
+  }
+
+  int packetCount() {
+    return count;
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    out.write(packets);
+  }
+
+  private static void wrap(String message, List<String> lines) {
+    while (message.length() > 0) {
+      if (message.length() > MESSAGE_SIZE) {
+        int end = MESSAGE_SIZE - 1;
+        while (end > 0 && message.charAt(end) != ' ') {
+          end--;
+        }
+        if (end == 0) {
+          end = MESSAGE_SIZE;
+        } else {
+          end++;
+        }
+
+        if (end > 0 && message.charAt(end) == '\u00a7') {
+          end--;
+        }
+
+        String firstPart = message.substring(0, end);
+        add(firstPart, lines);
+        message = lastColorCode(firstPart) + message.substring(end);
+      } else {
+        int end = message.length();
+        if (message.charAt(end - 1) == '\u00a7') {
+          end--;
+        }
+        add(message.substring(0, end), lines);
+        return;
+      }
+    }
+  }
+
+  private static void add(String line, List<String> lines) {
+    if (line.length() > MESSAGE_SIZE) {
+      System.out.println("[SimpleServer] Invalid message size: " + line);
+    } else if (line.length() > 0) {
+      lines.add(line);
+    }
+  }
+
+  private static String lastColorCode(String message) {
+    int lastIndex = message.lastIndexOf('\u00a7');
+    if (lastIndex != -1 && lastIndex + 1 < message.length()) {
+      return message.substring(lastIndex, lastIndex + 2);
+    }
+    return "";
+  }
+}
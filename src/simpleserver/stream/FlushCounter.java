@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+/*
+ * Counts how many packets each flush of a tunnel carried. Only the tunnel's
+ * own thread writes to it; other threads just read the totals.
+ */
+public class FlushCounter {
+  private static final int BUCKETS = 8;
+
+  private final long[] histogram = new long[BUCKETS];
+  private volatile long flushes;
+  private volatile long packets;
+  private int pending;
+
+  void packet() {
+    pending++;
+  }
+
+  int pending() {
+    return pending;
+  }
+
+  void flushed() {
+    if (pending == 0) {
+      return;
+    }
+
+    int bucket = 31 - Integer.numberOfLeadingZeros(pending);
+    histogram[Math.min(bucket, BUCKETS - 1)]++;
+    packets += pending;
+    flushes++;
+    pending = 0;
+  }
+
+  public long flushes() {
+    return flushes;
+  }
+
+  public long packets() {
+    return packets;
+  }
+
+  public double packetsPerFlush() {
+    long flushes = this.flushes;
+    return flushes == 0 ? 0 : (double) packets / flushes;
+  }
+
+  // bucket i counts flushes that carried 2^i up to 2^(i+1)-1 packets
+  public long[] histogram() {
+    return histogram.clone();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append(String.format("%d flushes, %.1f packets/flush", flushes, packetsPerFlush()));
+    for (int i = 0; i < BUCKETS; i++) {
+      int low = 1 << i;
+      builder.append(i == 0 ? " [" : ", ");
+      if (i == BUCKETS - 1) {
+        builder.append(low).append("+");
+      } else if (low == (1 << (i + 1)) - 1) {
+        builder.append(low);
+      } else {
+        builder.append(low).append("-").append((1 << (i + 1)) - 1);
+      }
+      builder.append(": ").append(histogram[i]);
+    }
+    builder.append("]");
+    return builder.toString();
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Measures the next packet in a buffer without consuming it, so the selector
+ * engine only hands complete packets to StreamTunnel.handlePacket.
+ */
+class PacketFramer implements Packets.Cursor {
+  private static final Incomplete INCOMPLETE = new Incomplete();
+
+  private ByteBuffer buffer;
+  private int position;
+
+  /*
+   * Returns the length of the packet starting at the buffer's position, or -1
+   * if the buffer doesn't hold all of it yet.
+   */
+  int frame(ByteBuffer buffer) {
+    this.buffer = buffer;
+    position = buffer.position();
+    try {
+      byte packetId = readByte();
+      // handlePacket reports unknown packets itself
+      if (Packets.isKnown(packetId)) {
+        Packets.walk(packetId, this);
+      }
+      return position - buffer.position();
+    } catch (Incomplete e) {
+      return -1;
+    } catch (IOException e) {
+      // walk only throws for unknown packets, which were checked above
+      throw new IllegalStateException(e);
+    } finally {
+      this.buffer = null;
+    }
+  }
+
+  public void bytes(int count) {
+    if (count < 0) {
+      return;
+    }
+    if (buffer.limit() - position < count) {
+      throw INCOMPLETE;
+    }
+    position += count;
+  }
+
+  public byte readByte() {
+    if (position + 1 > buffer.limit()) {
+      throw INCOMPLETE;
+    }
+    return buffer.get(position++);
+  }
+
+  public short readShort() {
+    if (position + 2 > buffer.limit()) {
+      throw INCOMPLETE;
+    }
+    short value = buffer.getShort(position);
+    position += 2;
+    return value;
+  }
+
+  public int readInt() {
+    if (position + 4 > buffer.limit()) {
+      throw INCOMPLETE;
+    }
+    int value = buffer.getInt(position);
+    position += 4;
+    return value;
+  }
+
+  private static final class Incomplete extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Packet count, bytes and handling time per packet id. Every instance has a
+ * single writer (a tunnel, or TrafficStatistics under its lock), so updates
+ * are plain get/lazySet pairs without any contention; other threads may read
+ * at any time. Aggregates are built by adding instances together.
+ *
+ * Histogram rows are allocated the first time their packet id is seen, as
+ * a connection only uses a few dozen ids; a fully sized histogram would
+ * cost 32 KB per tunnel.
+ */
+public class PacketStatistics {
+  private static final int PACKET_IDS = 256;
+  // bucket i counts packets handled in under 2^i microseconds
+  public static final int BUCKETS = 16;
+
+  private final AtomicLongArray counts = new AtomicLongArray(PACKET_IDS);
+  private final AtomicLongArray bytes = new AtomicLongArray(PACKET_IDS);
+  private final AtomicLongArray nanos = new AtomicLongArray(PACKET_IDS);
+  private final AtomicReferenceArray<AtomicLongArray> histogram = new AtomicReferenceArray<AtomicLongArray>(PACKET_IDS);
+
+  void record(byte packetId, long length, long time) {
+    int id = packetId & 0xff;
+    increment(counts, id, 1);
+    increment(bytes, id, length);
+    increment(nanos, id, time);
+
+    int micros = (int) Math.min(time >> 10, Integer.MAX_VALUE);
+    int bucket = Math.min(32 - Integer.numberOfLeadingZeros(micros), BUCKETS - 1);
+    increment(row(id), bucket, 1);
+  }
+
+  void add(PacketStatistics other) {
+    for (int id = 0; id < PACKET_IDS; id++) {
+      increment(counts, id, other.counts.get(id));
+      increment(bytes, id, other.bytes.get(id));
+      increment(nanos, id, other.nanos.get(id));
+    }
+    for (int id = 0; id < PACKET_IDS; id++) {
+      AtomicLongArray buckets = other.histogram.get(id);
+      if (buckets == null) {
+        continue;
+      }
+      AtomicLongArray row = row(id);
+      for (int i = 0; i < BUCKETS; i++) {
+        increment(row, i, buckets.get(i));
+      }
+    }
+  }
+
+  public long count(int packetId) {
+    return counts.get(packetId & 0xff);
+  }
+
+  public long bytes(int packetId) {
+    return bytes.get(packetId & 0xff);
+  }
+
+  public long nanos(int packetId) {
+    return nanos.get(packetId & 0xff);
+  }
+
+  public long[] histogram(int packetId) {
+    long[] copy = new long[BUCKETS];
+    AtomicLongArray row = histogram.get(packetId & 0xff);
+    if (row != null) {
+      for (int i = 0; i < BUCKETS; i++) {
+        copy[i] = row.get(i);
+      }
+    }
+    return copy;
+  }
+
+  public long totalCount() {
+    long total = 0;
+    for (int id = 0; id < PACKET_IDS; id++) {
+      total += counts.get(id);
+    }
+    return total;
+  }
+
+  public long totalBytes() {
+    long total = 0;
+    for (int id = 0; id < PACKET_IDS; id++) {
+      total += bytes.get(id);
+    }
+    return total;
+  }
+
+  // upper bound in microseconds below which the given share of packets fell
+  public long percentile(int packetId, double share) {
+    long[] buckets = histogram(packetId);
+    long count = 0;
+    for (long bucket : buckets) {
+      count += bucket;
+    }
+
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+      if (seen > 0 && seen >= share * count) {
+        return 1L << i;
+      }
+    }
+    return 1L << (BUCKETS - 1);
+  }
+
+  /*
+   * One line per packet id that was seen, the busiest (by bytes) first.
+   */
+  public List<String> report(int limit) {
+    Integer[] ids = new Integer[PACKET_IDS];
+    for (int id = 0; id < PACKET_IDS; id++) {
+      ids[id] = id;
+    }
+    final long[] order = new long[PACKET_IDS];
+    for (int id = 0; id < PACKET_IDS; id++) {
+      order[id] = bytes.get(id);
+    }
+    Arrays.sort(ids, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return order[b] < order[a] ? -1 : (order[b] == order[a] ? 0 : 1);
+      }
+    });
+
+    List<String> lines = new ArrayList<String>();
+    for (int id : ids) {
+      long count = counts.get(id);
+      if (count == 0) {
+        continue;
+      }
+      if (lines.size() >= limit) {
+        break;
+      }
+      lines.add(String.format("0x%02x: %d packets, %s, avg %.1fus, 99%% < %dus",
+                              id, count, formatBytes(bytes.get(id)),
+                              nanos.get(id) / 1000.0 / count,
+                              percentile(id, 0.99)));
+    }
+    return lines;
+  }
+
+  public static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    } else if (bytes < 1024 * 1024) {
+      return String.format("%.1f KB", bytes / 1024.0);
+    } else {
+      return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+  }
+
+  // only called by the single writer, so a plain check-then-set is enough
+  private AtomicLongArray row(int id) {
+    AtomicLongArray row = histogram.get(id);
+    if (row == null) {
+      row = new AtomicLongArray(BUCKETS);
+      histogram.set(id, row);
+    }
+    return row;
+  }
+
+  private static void increment(AtomicLongArray array, int index, long delta) {
+    if (delta != 0) {
+      array.lazySet(index, array.get(index) + delta);
+    }
+  }
+}
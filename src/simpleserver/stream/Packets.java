@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import static simpleserver.stream.Packets.Field.BLOCK_CHANGES;
+import static simpleserver.stream.Packets.Field.BOOLEAN;
+import static simpleserver.stream.Packets.Field.BYTE;
+import static simpleserver.stream.Packets.Field.BYTE_ARRAY;
+import static simpleserver.stream.Packets.Field.DOUBLE;
+import static simpleserver.stream.Packets.Field.EXPLOSION_RECORDS;
+import static simpleserver.stream.Packets.Field.FLOAT;
+import static simpleserver.stream.Packets.Field.INT;
+import static simpleserver.stream.Packets.Field.ITEM;
+import static simpleserver.stream.Packets.Field.ITEMS;
+import static simpleserver.stream.Packets.Field.LONG;
+import static simpleserver.stream.Packets.Field.MAP_DATA;
+import static simpleserver.stream.Packets.Field.METADATA;
+import static simpleserver.stream.Packets.Field.MODLOADER_DATA;
+import static simpleserver.stream.Packets.Field.OBJECT_DATA;
+import static simpleserver.stream.Packets.Field.PLACED_ITEM;
+import static simpleserver.stream.Packets.Field.PLUGIN_DATA;
+import static simpleserver.stream.Packets.Field.REDPOWER_DATA;
+import static simpleserver.stream.Packets.Field.SHORT;
+import static simpleserver.stream.Packets.Field.STRING;
+
+import java.io.IOException;
+
+/*
+ * Layouts of every packet the proxy understands. StreamTunnel, the bots and
+ * the selector engine's framer all walk packets through this table, so
+ * protocol changes only have to be made here. Packets the proxy looks into
+ * are still handled by hand, but have to be listed here as well.
+ */
+public final class Packets {
+  private static final int MAXIMUM_ITEM_ID = 4096;
+
+  private static final int[][] PROGRAMS = new int[256][];
+  private static final Field[] FIELDS = Field.values();
+  private static final boolean[] ENCHANTABLE = new boolean[MAXIMUM_ITEM_ID];
+
+  static {
+    define(0x00, INT); // Keep Alive
+    define(0x01, INT, STRING, LONG, STRING, INT, BYTE, BYTE, BYTE, BYTE); // Login
+    define(0x02, STRING); // Handshake
+    define(0x03, STRING); // Chat Message
+    define(0x04, LONG); // Time Update
+    define(0x05, INT, SHORT, SHORT, SHORT); // Player Inventory
+    define(0x06, INT, INT, INT); // Spawn Position
+    define(0x07, INT, INT, BOOLEAN); // Use Entity
+    define(0x08, SHORT, SHORT, FLOAT); // Update Health
+    define(0x09, BYTE, BYTE, BYTE, SHORT, LONG, STRING); // Respawn
+    define(0x0a, BOOLEAN); // Player
+    define(0x0b, DOUBLE, DOUBLE, DOUBLE, DOUBLE, BOOLEAN); // Player Position
+    define(0x0c, FLOAT, FLOAT, BOOLEAN); // Player Look
+    define(0x0d, DOUBLE, DOUBLE, DOUBLE, DOUBLE, FLOAT, FLOAT, BOOLEAN); // Player Position & Look
+    define(0x0e, BYTE, INT, BYTE, INT, BYTE); // Player Digging
+    define(0x0f, INT, BYTE, INT, BYTE, PLACED_ITEM); // Player Block Placement
+    define(0x10, SHORT); // Holding Change
+    define(0x11, INT, BYTE, INT, BYTE, INT); // Use Bed
+    define(0x12, INT, BYTE); // Animation
+    define(0x13, INT, BYTE); // Entity Action
+    define(0x14, INT, STRING, INT, INT, INT, BYTE, BYTE, SHORT); // Named Entity Spawn
+    define(0x15, INT, SHORT, BYTE, SHORT, INT, INT, INT, BYTE, BYTE, BYTE); // Pickup Spawn
+    define(0x16, INT, INT); // Collect Item
+    define(0x17, INT, BYTE, INT, INT, INT, OBJECT_DATA); // Add Object/Vehicle
+    define(0x18, INT, BYTE, INT, INT, INT, BYTE, BYTE, METADATA); // Mob Spawn
+    define(0x19, INT, STRING, INT, INT, INT, INT); // Painting
+    define(0x1a, INT, INT, INT, INT, SHORT); // Experience Orb
+    define(0x1c, INT, SHORT, SHORT, SHORT); // Entity Velocity
+    define(0x1d, INT); // Destroy Entity
+    define(0x1e, INT); // Entity
+    define(0x1f, INT, BYTE, BYTE, BYTE); // Entity Relative Move
+    define(0x20, INT, BYTE, BYTE); // Entity Look
+    define(0x21, INT, BYTE, BYTE, BYTE, BYTE, BYTE); // Entity Look and Relative Move
+    define(0x22, INT, INT, INT, INT, BYTE, BYTE); // Entity Teleport
+    define(0x26, INT, BYTE); // Entity Status
+    define(0x27, INT, INT); // Attach Entity
+    define(0x28, INT, METADATA); // Entity Metadata
+    define(0x29, INT, BYTE, BYTE, SHORT); // Add Status Effect
+    define(0x2a, INT, BYTE); // Remove Status Effect
+    define(0x2b, FLOAT, SHORT, SHORT); // Experience
+    define(0x32, INT, INT, BOOLEAN); // Pre-Chunk
+    define(0x33, INT, SHORT, INT, BYTE, BYTE, BYTE, BYTE_ARRAY); // Map Chunk
+    define(0x34, INT, INT, BLOCK_CHANGES); // Multi Block Change
+    define(0x35, INT, BYTE, INT, BYTE, BYTE); // Block Change
+    define(0x36, INT, SHORT, INT, BYTE, BYTE); // Block Action
+    define(0x3c, DOUBLE, DOUBLE, DOUBLE, FLOAT, EXPLOSION_RECORDS); // Explosion
+    define(0x3d, INT, INT, BYTE, INT, INT); // Sound Effect
+    define(0x46, BYTE, BYTE); // Invalid State
+    define(0x47, INT, BOOLEAN, INT, INT, INT); // Thunder
+    define(0x64, BYTE, BYTE, STRING, BYTE); // Open Window
+    define(0x65, BYTE); // Close Window
+    define(0x66, BYTE, SHORT, BYTE, SHORT, BOOLEAN, ITEM); // Inventory Item Move
+    define(0x67, BYTE, SHORT, ITEM); // Inventory Item Update
+    define(0x68, BYTE, ITEMS); // Inventory
+    define(0x69, BYTE, SHORT, SHORT); // Update Progress Bar
+    define(0x6a, BYTE, SHORT, BOOLEAN); // Transaction
+    define(0x6b, SHORT, ITEM); // Creative Inventory Action
+    define(0x6c, BYTE, BYTE); // Enchant Item
+    define(0x82, INT, SHORT, INT, STRING, STRING, STRING, STRING); // Update Sign
+    define(0x83, SHORT, SHORT, MAP_DATA); // Map Data
+    define(0xc3, INT, BYTE_ARRAY); // BukkitContrib
+    define(0xc8, INT, BYTE); // Statistic
+    define(0xc9, STRING, BOOLEAN, SHORT); // Player List Item
+    define(0xd3, BYTE, REDPOWER_DATA); // Red Power (mod by Eloraam)
+    define(0xe6, INT, INT, MODLOADER_DATA); // ModLoaderMP by SDK
+    define(0xfa, STRING, PLUGIN_DATA); // Plugin Message
+    define(0xfe); // Server List Ping
+    define(0xff, STRING); // Disconnect/Kick
+
+    enchantable(0x15a); // Fishing rod
+    enchantable(0x167); // Shears
+    enchantable(0x105); // Bow
+    // Tools
+    enchantable(256, 259);
+    enchantable(267, 279);
+    enchantable(283, 286);
+    enchantable(290, 294);
+    // Armour
+    enchantable(298, 317);
+  }
+
+  private Packets() {
+  }
+
+  public static boolean isKnown(byte packetId) {
+    return PROGRAMS[packetId & 0xff] != null;
+  }
+
+  public static boolean isEnchantable(short itemId) {
+    return itemId >= 0 && itemId < MAXIMUM_ITEM_ID && ENCHANTABLE[itemId];
+  }
+
+  // passes the packet (after its id) through the cursor field by field
+  public static void walk(byte packetId, Cursor cursor) throws IOException {
+    int[] program = PROGRAMS[packetId & 0xff];
+    if (program == null) {
+      throw new IOException("Unknown packet 0x" + Integer.toHexString(packetId & 0xff));
+    }
+    for (int step : program) {
+      if (step >= 0) {
+        cursor.bytes(step);
+      } else {
+        FIELDS[~step].walk(cursor);
+      }
+    }
+  }
+
+  /*
+   * Compiles a layout into steps: runs of fixed size fields become a single
+   * byte count (a whole fixed size packet is one bulk copy), variable fields
+   * are stored as the complement of their ordinal.
+   */
+  private static void define(int packetId, Field... fields) {
+    int[] steps = new int[fields.length];
+    int count = 0;
+    int run = 0;
+    for (Field field : fields) {
+      if (field.size >= 0) {
+        run += field.size;
+      } else {
+        if (run > 0) {
+          steps[count++] = run;
+          run = 0;
+        }
+        steps[count++] = ~field.ordinal();
+      }
+    }
+    if (run > 0) {
+      steps[count++] = run;
+    }
+
+    int[] program = new int[count];
+    System.arraycopy(steps, 0, program, 0, count);
+    PROGRAMS[packetId] = program;
+  }
+
+  private static void enchantable(int id) {
+    ENCHANTABLE[id] = true;
+  }
+
+  private static void enchantable(int first, int last) {
+    for (int id = first; id <= last; id++) {
+      ENCHANTABLE[id] = true;
+    }
+  }
+
+  private static void walkItem(Cursor cursor) throws IOException {
+    short id = cursor.readShort();
+    if (id > 0) {
+      cursor.bytes(3);
+      if (isEnchantable(id)) {
+        short length = cursor.readShort();
+        if (length > 0) {
+          cursor.bytes(length);
+        }
+      }
+    }
+  }
+
+  private static void walkUTF16(Cursor cursor) throws IOException {
+    cursor.bytes(cursor.readShort() * 2);
+  }
+
+  private static long walkVLC(Cursor cursor) throws IOException {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      int i = cursor.readByte();
+      value |= (i & 0x7F) << shift;
+      if ((i & 0x80) == 0) {
+        break;
+      }
+      shift += 7;
+    }
+    return value;
+  }
+
+  /*
+   * Receives a packet as it is walked. Whatever is read through it counts as
+   * consumed, so a copying cursor writes the values it returns, too.
+   */
+  public interface Cursor {
+    byte readByte() throws IOException;
+
+    short readShort() throws IOException;
+
+    int readInt() throws IOException;
+
+    void bytes(int count) throws IOException;
+  }
+
+  enum Field {
+    BYTE(1),
+    BOOLEAN(1),
+    SHORT(2),
+    INT(4),
+    FLOAT(4),
+    LONG(8),
+    DOUBLE(8),
+    STRING {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        walkUTF16(cursor);
+      }
+    },
+    ITEM {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        walkItem(cursor);
+      }
+    },
+    ITEMS {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        short count = cursor.readShort();
+        for (int c = 0; c < count; ++c) {
+          walkItem(cursor);
+        }
+      }
+    },
+    PLACED_ITEM {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        short id = cursor.readShort();
+        if (id != -1) {
+          cursor.bytes(3);
+          if (isEnchantable(id)) {
+            short length = cursor.readShort();
+            if (length > 0) {
+              cursor.bytes(length);
+            }
+          }
+        }
+      }
+    },
+    METADATA {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        byte unknown = cursor.readByte();
+        while (unknown != 0x7f) {
+          switch ((unknown & 0xE0) >> 5) {
+            case 0:
+              cursor.bytes(1);
+              break;
+            case 1:
+              cursor.bytes(2);
+              break;
+            case 2:
+            case 3:
+              cursor.bytes(4);
+              break;
+            case 4:
+              walkUTF16(cursor);
+              break;
+            case 5:
+              cursor.bytes(5);
+              break;
+            case 6:
+              cursor.bytes(12);
+          }
+          unknown = cursor.readByte();
+        }
+      }
+    },
+    OBJECT_DATA {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        if (cursor.readInt() > 0) {
+          cursor.bytes(6);
+        }
+      }
+    },
+    BYTE_ARRAY {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        cursor.bytes(cursor.readInt());
+      }
+    },
+    BLOCK_CHANGES {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        cursor.bytes(cursor.readShort() * 4);
+      }
+    },
+    EXPLOSION_RECORDS {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        cursor.bytes(cursor.readInt() * 3);
+      }
+    },
+    MAP_DATA {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        cursor.bytes(0xff & cursor.readByte());
+      }
+    },
+    PLUGIN_DATA {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        cursor.bytes(0xff & cursor.readShort());
+      }
+    },
+    REDPOWER_DATA {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        walkVLC(cursor);
+        walkVLC(cursor);
+        walkVLC(cursor);
+        cursor.bytes((int) walkVLC(cursor));
+      }
+    },
+    MODLOADER_DATA {
+      @Override
+      void walk(Cursor cursor) throws IOException {
+        cursor.bytes(cursor.readInt() * 4); // ints
+        cursor.bytes(cursor.readInt() * 4); // floats
+        int strings = cursor.readInt();
+        for (int i = 0; i < strings; i++) {
+          cursor.bytes(cursor.readInt());
+        }
+      }
+    };
+
+    private final int size;
+
+    private Field() {
+      this(-1);
+    }
+
+    private Field(int size) {
+      this.size = size;
+    }
+
+    void walk(Cursor cursor) throws IOException {
+      cursor.bytes(size);
+    }
+  }
+}
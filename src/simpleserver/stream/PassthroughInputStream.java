@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+class PassthroughInputStream extends BufferedInputStream {
+  private long consumed;
+
+  PassthroughInputStream(InputStream in) {
+    super(in);
+  }
+
+  // bytes handed out so far, only meant for the reading thread
+  long consumed() {
+    return consumed;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    int b = super.read();
+    if (b >= 0) {
+      consumed++;
+    }
+    return b;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    int read = super.read(b, off, len);
+    if (read > 0) {
+      consumed += read;
+    }
+    return read;
+  }
+
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    long skipped = super.skip(n);
+    consumed += skipped;
+    return skipped;
+  }
+
+  // writes the next bytes straight out of the read buffer
+  synchronized void passTo(OutputStream out, int bytes) throws IOException {
+    while (bytes > 0) {
+      if (pos >= count) {
+        if (super.read() < 0) {
+          throw new EOFException();
+        }
+        pos--;
+      }
+      int chunk = Math.min(bytes, count - pos);
+      out.write(buf, pos, chunk);
+      pos += chunk;
+      bytes -= chunk;
+      consumed += chunk;
+    }
+  }
+}
@@ -22,20 +22,17 @@ package simpleserver.stream;
 
 import static simpleserver.lang.Translations.t;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import simpleserver.Authenticator.AuthRequest;
 import simpleserver.Color;
@@ -46,64 +43,67 @@ import simpleserver.Server;
 import simpleserver.command.PlayerListCommand;
 import simpleserver.config.data.Chests.Chest;
 import simpleserver.config.xml.Config.BlockPermission;
+import simpleserver.config.xml.RuntimeSettings;
 
 public class StreamTunnel {
   private static final boolean EXPENSIVE_DEBUG_LOGGING = Boolean.getBoolean("EXPENSIVE_DEBUG_LOGGING");
   private static final int IDLE_TIME = 30000;
   private static final int BUFFER_SIZE = 1024;
   private static final byte BLOCK_DESTROYED_STATUS = 2;
-  private static final Pattern MESSAGE_PATTERN = Pattern.compile("^<([^>]+)> (.*)$");
-  private static final Pattern COLOR_PATTERN = Pattern.compile("\u00a7[0-9a-f]");
-  private static final Pattern JOIN_PATTERN = Pattern.compile("\u00a7.((\\d|\\w)*) (joined|left) the game.");
-  private static final String CONSOLE_CHAT_PATTERN = "\\(CONSOLE:.*\\)";
-  private static final int MESSAGE_SIZE = 60;
   private static final int MAXIMUM_MESSAGE_SIZE = 119;
-  public static final HashSet<Short> ENCHANTABLE = new HashSet<Short>();
-
-  static {
-    ENCHANTABLE.add((short) 0x15a); // Fishing rod
-    ENCHANTABLE.add((short) 0x167); // Shears
-    ENCHANTABLE.add((short) 0x105); // Bow
-    // Tools
-    for (short id = 256; id <= 259; id++) {
-      ENCHANTABLE.add(id);
-    }
-    for (short id = 267; id <= 279; id++) {
-      ENCHANTABLE.add(id);
-    }
-    for (short id = 283; id <= 286; id++) {
-      ENCHANTABLE.add(id);
-    }
-    for (short id = 290; id <= 294; id++) {
-      ENCHANTABLE.add(id);
-    }
-    // Armour
-    for (short id = 298; id <= 317; id++) {
-      ENCHANTABLE.add(id);
-    }
-  };
+  private static final int NO_PACKET = -1;
 
   private final boolean isServerTunnel;
   private final String streamType;
   private final Player player;
   private final Server server;
   private final byte[] buffer;
-  private final Tunneler tunneler;
+  private final ByteBufferInputStream channelInput;
+  private final ByteBufferOutputStream channelOutput;
+  private final FlushCounter flushCounter;
+  private final PacketStatistics statistics;
+  private final Copier copier;
+  private final ChatScanner chatScanner = new ChatScanner();
+  private final boolean coalesceFlushes;
+  private final int coalesceBytes;
+  private final long coalesceNanos;
+  private Thread tunneler;
 
   private DataInput in;
   private DataOutput out;
   private StreamDumper inputDumper;
   private StreamDumper outputDumper;
+  private PassthroughInputStream input;
+  private PendingOutputStream output;
 
   private boolean inGame = false;
+  private long firstUnflushed;
 
   private volatile long lastRead;
   private volatile boolean run = true;
-  private Byte lastPacket;
+  private volatile boolean finished = false;
+  private int lastPacket = NO_PACKET;
   private char commandPrefix;
 
   public StreamTunnel(InputStream in, OutputStream out, boolean isServerTunnel,
                       Player player) {
+    this(isServerTunnel, player, null, null);
+    input = new PassthroughInputStream(new FlushingInputStream(in));
+    output = new PendingOutputStream(out);
+    open(input, output);
+
+    tunneler = server.threads.start(new Tunneler(), streamType);
+  }
+
+  public StreamTunnel(boolean isServerTunnel, Player player) {
+    this(isServerTunnel, player, new ByteBufferInputStream(),
+         new ByteBufferOutputStream());
+    open(channelInput, channelOutput);
+  }
+
+  private StreamTunnel(boolean isServerTunnel, Player player,
+                       ByteBufferInputStream channelInput,
+                       ByteBufferOutputStream channelOutput) {
     this.isServerTunnel = isServerTunnel;
     if (isServerTunnel) {
       streamType = "ServerStream";
@@ -115,8 +115,24 @@ public class StreamTunnel {
     server = player.getServer();
     commandPrefix = server.options.getBoolean("useSlashes") ? '/' : '!';
 
-    DataInputStream dIn = new DataInputStream(new BufferedInputStream(in));
-    DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(out));
+    this.channelInput = channelInput;
+    this.channelOutput = channelOutput;
+    buffer = new byte[BUFFER_SIZE];
+    flushCounter = new FlushCounter();
+    statistics = new PacketStatistics();
+    copier = new Copier();
+
+    coalesceFlushes = server.options.getBoolean("coalesceFlushes");
+    coalesceBytes = server.options.getInt("coalesceFlushBytes");
+    coalesceNanos = server.options.getInt("coalesceFlushMillis") * 1000000L;
+
+    lastRead = System.currentTimeMillis();
+    server.traffic.opened(this);
+  }
+
+  private void open(InputStream in, OutputStream out) {
+    DataInputStream dIn = new DataInputStream(in);
+    DataOutputStream dOut = new DataOutputStream(out);
     if (EXPENSIVE_DEBUG_LOGGING) {
       try {
         OutputStream dump = new FileOutputStream(streamType + "Input.debug");
@@ -141,13 +157,11 @@ public class StreamTunnel {
       this.in = dIn;
       this.out = dOut;
     }
+  }
 
-    buffer = new byte[BUFFER_SIZE];
-
-    tunneler = new Tunneler();
-    tunneler.start();
-
-    lastRead = System.currentTimeMillis();
+  // for bytes already read off the channel before the tunnel was set up
+  public void unread(byte[] data) {
+    channelInput.buffer().put(data);
   }
 
   public void stop() {
@@ -155,7 +169,10 @@ public class StreamTunnel {
   }
 
   public boolean isAlive() {
-    return tunneler.isAlive();
+    if (tunneler != null) {
+      return tunneler.isAlive();
+    }
+    return !finished;
   }
 
   public boolean isActive() {
@@ -163,18 +180,94 @@ public class StreamTunnel {
         || player.isRobot();
   }
 
-  private void handlePacket() throws IOException {
-    Byte packetId = in.readByte();
+  public FlushCounter flushCounter() {
+    return flushCounter;
+  }
+
+  public PacketStatistics packetStatistics() {
+    return statistics;
+  }
+
+  public boolean isServerTunnel() {
+    return isServerTunnel;
+  }
+
+  boolean isRunning() {
+    return run;
+  }
+
+  ByteBufferInputStream channelInput() {
+    return channelInput;
+  }
+
+  ByteBufferOutputStream channelOutput() {
+    return channelOutput;
+  }
+
+  String streamType() {
+    return streamType;
+  }
+
+  // handles one packet and whatever messages queued up for this direction
+  void tunnelPacket() throws IOException {
+    lastRead = System.currentTimeMillis();
+
+    long consumed = consumed();
+    byte packetId = in.readByte();
+    long start = System.nanoTime();
+    handlePacket(packetId);
+    statistics.record(packetId, consumed() - consumed, System.nanoTime() - start);
+
+    if (isServerTunnel) {
+      while (player.hasMessages()) {
+        sendMessage(player.getMessage());
+      }
+    } else {
+      while (player.hasForwardMessages()) {
+        sendMessage(player.getForwardMessage());
+      }
+    }
+  }
+
+  void reportError(Exception e) {
+    if (run && !player.isRobot()) {
+      System.out.println("[SimpleServer] " + e);
+      System.out.print("[SimpleServer] " + streamType
+          + " error handling traffic for " + player.getIPAddress());
+      if (lastPacket != NO_PACKET) {
+        System.out.print(" (" + Integer.toHexString(lastPacket) + ")");
+      }
+      System.out.println();
+    }
+  }
+
+  // sends the kick message if there is one; the tunnel is dead afterwards
+  void finish() {
+    try {
+      try {
+        if (player.isKicked()) {
+          kick(player.getKickMsg());
+        }
+        flushAll();
+      } catch (IOException e) {
+      }
+    } finally {
+      finished = true;
+      server.traffic.closed(this);
+      if (EXPENSIVE_DEBUG_LOGGING) {
+        inputDumper.cleanup();
+        outputDumper.cleanup();
+      }
+    }
+  }
+
+  private void handlePacket(byte packetId) throws IOException {
     int x;
     byte y;
     int z;
     byte dimension;
     Coordinate coordinate;
     switch (packetId) {
-      case 0x00: // Keep Alive
-        write(packetId);
-        write(in.readInt()); // random number that is returned form server
-        break;
       case 0x01: // Login Request/Response
         write(packetId);
         if (isServerTunnel) {
@@ -206,7 +299,7 @@ public class StreamTunnel {
         write(in.readByte());
         if (isServerTunnel) {
           in.readByte();
-          write((byte) server.config.properties.getInt("maxPlayers"));
+          write((byte) server.settings.maxPlayers);
         } else {
           write(in.readByte());
         }
@@ -252,7 +345,9 @@ public class StreamTunnel {
         }
 
         if (isServerTunnel || nameSet) {
-          tunneler.setName(streamType + "-" + player.getName());
+          if (tunneler != null) {
+            tunneler.setName(streamType + "-" + player.getName());
+          }
           write(packetId);
           write(name);
         }
@@ -260,35 +355,30 @@ public class StreamTunnel {
         break;
       case 0x03: // Chat Message
         String message = readUTF16();
+        RuntimeSettings settings = server.settings;
 
-        Matcher joinMatcher = JOIN_PATTERN.matcher(message);
-        if (isServerTunnel && joinMatcher.find()) {
-          if (server.bots.ninja(joinMatcher.group(1))) {
+        ChatScanner.Kind kind = isServerTunnel ? chatScanner.scan(message) : null;
+        if (kind == ChatScanner.Kind.JOIN || kind == ChatScanner.Kind.LEAVE) {
+          String joined = chatScanner.name();
+          if (server.bots.ninja(joined)) {
             break;
           }
-          if (message.contains("join")) {
-            player.addTMessage(Color.YELLOW, "%s joined the game.", joinMatcher.group(1));
+          if (kind == ChatScanner.Kind.JOIN) {
+            player.addTMessage(Color.YELLOW, "%s joined the game.", joined);
           } else {
-            player.addTMessage(Color.YELLOW, "%s left the game.", joinMatcher.group(1));
+            player.addTMessage(Color.YELLOW, "%s left the game.", joined);
           }
           break;
         }
-        if (isServerTunnel && server.config.properties.getBoolean("useMsgFormats")) {
-          if (server.config.properties.getBoolean("forwardChat") && server.getMessager().wasForwarded(message)) {
+        if (isServerTunnel && settings.useMsgFormats) {
+          if (settings.forwardChat && server.getMessager().wasForwarded(message)) {
             break;
           }
-
-          Matcher colorMatcher = COLOR_PATTERN.matcher(message);
-          String cleanMessage = colorMatcher.replaceAll("");
-
-          Matcher messageMatcher = MESSAGE_PATTERN.matcher(cleanMessage);
-          if (messageMatcher.find()) {
-
-          } else if (cleanMessage.matches(CONSOLE_CHAT_PATTERN) && !server.config.properties.getBoolean("chatConsoleToOps")) {
+          if (kind == ChatScanner.Kind.CONSOLE_CHAT && !settings.chatConsoleToOps) {
             break;
           }
 
-          if (server.config.properties.getBoolean("msgWrap")) {
+          if (settings.msgWrap) {
             sendMessage(message);
           } else {
             if (message.length() > MAXIMUM_MESSAGE_SIZE) {
@@ -325,17 +415,6 @@ public class StreamTunnel {
         server.setTime(time);
         write(time);
         break;
-      case 0x05: // Player Inventory
-        write(packetId);
-        write(in.readInt());
-        write(in.readShort());
-        write(in.readShort());
-        write(in.readShort());
-        break;
-      case 0x06: // Spawn Position
-        write(packetId);
-        copyNBytes(12);
-        break;
       case 0x07: // Use Entity?
         int user = in.readInt();
         int target = in.readInt();
@@ -373,7 +452,7 @@ public class StreamTunnel {
         if (!inGame && !isServerTunnel) {
           player.sendMOTD();
 
-          if (server.config.properties.getBoolean("showListOnConnect")) {
+          if (server.settings.showListOnConnect) {
             // display player list if enabled in config
             player.execute(PlayerListCommand.class);
           }
@@ -425,7 +504,6 @@ public class StreamTunnel {
           if (!locked || player.ignoresChestLocks() || server.data.chests.canOpen(player, coordinate)) {
             if (locked && status == BLOCK_DESTROYED_STATUS) {
               server.data.chests.releaseLock(coordinate);
-              server.data.save();
             }
 
             write(packetId);
@@ -450,8 +528,7 @@ public class StreamTunnel {
             }
           }
         } else {
-          write(packetId);
-          copyNBytes(11);
+          copyPacket(packetId);
         }
         break;
       case 0x0f: // Player Block Placement
@@ -467,7 +544,7 @@ public class StreamTunnel {
         if (dropItem != -1) {
           itemCount = in.readByte();
           uses = in.readShort();
-          if (ENCHANTABLE.contains(dropItem)) {
+          if (Packets.isEnchantable(dropItem)) {
             short dataLength = in.readShort();
             if (dataLength != -1) {
               data = new byte[dataLength];
@@ -541,7 +618,7 @@ public class StreamTunnel {
           if (dropItem != -1) {
             write(itemCount);
             write(uses);
-            if (ENCHANTABLE.contains(dropItem)) {
+            if (Packets.isEnchantable(dropItem)) {
               if (data != null) {
                 write((short) data.length);
                 out.write(data);
@@ -569,23 +646,6 @@ public class StreamTunnel {
           write(direction);
         }
 
-        break;
-      case 0x10: // Holding Change
-        write(packetId);
-        copyNBytes(2);
-        break;
-      case 0x11: // Use Bed
-        write(packetId);
-        copyNBytes(14);
-        break;
-      case 0x12: // Animation
-        write(packetId);
-        copyNBytes(5);
-        break;
-      case 0x13: // ???
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
         break;
       case 0x14: // Named Entity Spawn
         int eid = in.readInt();
@@ -599,135 +659,10 @@ public class StreamTunnel {
           skipNBytes(16);
         }
         break;
-      case 0x15: // Pickup spawn
-        write(packetId);
-        copyNBytes(24);
-        break;
-      case 0x16: // Collect Item
-        write(packetId);
-        copyNBytes(8);
-        break;
-      case 0x17: // Add Object/Vehicle
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        int flag = in.readInt();
-        write(flag);
-        if (flag > 0) {
-          write(in.readShort());
-          write(in.readShort());
-          write(in.readShort());
-        }
-        break;
-      case 0x18: // Mob Spawn
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readByte());
-
-        copyUnknownBlob();
-        break;
-      case 0x19: // Painting
-        write(packetId);
-        write(in.readInt());
-        write(readUTF16());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        break;
-      case 0x1a: // 1.8p3, experience Orb spawn
-        write(packetId);
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readShort());
-        break;
-      case 0x1c: // Entity Velocity?
-        write(packetId);
-        copyNBytes(10);
-        break;
-      case 0x1d: // Destroy Entity
-        write(packetId);
-        copyNBytes(4);
-        break;
-      case 0x1e: // Entity
-        write(packetId);
-        copyNBytes(4);
-        break;
-      case 0x1f: // Entity Relative Move
-        write(packetId);
-        copyNBytes(7);
-        break;
-      case 0x20: // Entity Look
-        write(packetId);
-        copyNBytes(6);
-        break;
-      case 0x21: // Entity Look and Relative Move
-        write(packetId);
-        copyNBytes(9);
-        break;
-      case 0x22: // Entity Teleport
-        write(packetId);
-        copyNBytes(18);
-        break;
-      case 0x26: // Entity status?
-        write(packetId);
-        copyNBytes(5);
-        break;
-      case 0x27: // Attach Entity?
-        write(packetId);
-        copyNBytes(8);
-        break;
-      case 0x28: // Entity Metadata
-        write(packetId);
-        write(in.readInt());
-
-        copyUnknownBlob();
-        break;
-      case 0x29: // new in 1.8, add status effect (41)
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readByte());
-        write(in.readShort());
-        break;
-      case 0x2a: // new in 1.8, remove status effect (42)
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
-        break;
       case 0x2b: // Experience (43)
         write(packetId);
         player.updateExperience(write(in.readFloat()), write(in.readShort()), write(in.readShort()));
         break;
-
-      case 0x32: // Pre-Chunk
-        write(packetId);
-        copyNBytes(9);
-        break;
-      case 0x33: // Map Chunk
-        write(packetId);
-        copyNBytes(13);
-        int chunkSize = in.readInt();
-        write(chunkSize);
-        copyNBytes(chunkSize);
-        break;
-      case 0x34: // Multi Block Change
-        write(packetId);
-        copyNBytes(8);
-        short arraySize = in.readShort();
-        write(arraySize);
-        copyNBytes(arraySize * 4);
-        break;
       case 0x35: // Block Change
         write(packetId);
         x = in.readInt();
@@ -748,34 +683,6 @@ public class StreamTunnel {
         write(blockType);
         write(metadata);
 
-        break;
-      case 0x36: // ???
-        write(packetId);
-        copyNBytes(12);
-        break;
-      case 0x3c: // Explosion
-        write(packetId);
-        copyNBytes(28);
-        int recordCount = in.readInt();
-        write(recordCount);
-        copyNBytes(recordCount * 3);
-        break;
-      case 0x3d: // Unknown
-        write(packetId);
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readInt());
-        write(in.readInt());
-        break;
-      case 0x46: // (70) Invalid state, changed in 1.8 (added serverMode byte)
-        write(packetId);
-        write(in.readByte());
-        write(in.readByte());
-        break;
-      case 0x47: // Thunder
-        write(packetId);
-        copyNBytes(17);
         break;
       case 0x64: // Open window
         boolean allow = true;
@@ -789,9 +696,8 @@ public class StreamTunnel {
             if (adjacent == null) {
               server.data.chests.addOpenChest(player.openedChest());
             } else {
-              server.data.chests.giveLock(adjacent.owner, player.openedChest(), adjacent.name);
+              server.data.chests.giveLock(adjacent.owner(), player.openedChest(), adjacent.name());
             }
-            server.data.save();
           }
           if (!player.getGroup().ignoreAreas && (!server.config.blockPermission(player, player.openedChest()).chest || (adjacent != null && !server.config.blockPermission(player, adjacent.coordinate).chest))) {
             player.addTMessage(Color.RED, "You can't use chests here");
@@ -800,7 +706,6 @@ public class StreamTunnel {
             if (server.data.chests.isLocked(player.openedChest())) {
               if (player.isAttemptingUnlock()) {
                 server.data.chests.unlock(player.openedChest());
-                server.data.save();
                 player.setAttemptedAction(null);
                 player.addTMessage(Color.RED, "This chest is no longer locked!");
                 typeString = t("Open Chest");
@@ -831,126 +736,15 @@ public class StreamTunnel {
           write(unknownByte);
         }
         break;
-      case 0x65:
-        write(packetId);
-        write(in.readByte());
-        break;
-      case 0x66: // Inventory Item Move
-        write(packetId);
-        write(in.readByte());
-        write(in.readShort());
-        write(in.readByte());
-        write(in.readShort());
-        write(in.readBoolean());
-        copyItem();
-        break;
-      case 0x67: // Inventory Item Update
-        write(packetId);
-        write(in.readByte());
-        write(in.readShort());
-        copyItem();
-        break;
-      case 0x68: // Inventory
-        write(packetId);
-        write(in.readByte());
-        short count = write(in.readShort());
-        for (int c = 0; c < count; ++c) {
-          copyItem();
-        }
-        break;
-      case 0x69:
-        write(packetId);
-        write(in.readByte());
-        write(in.readShort());
-        write(in.readShort());
-        break;
-      case 0x6a:
-        write(packetId);
-        write(in.readByte());
-        write(in.readShort());
-        write(in.readByte());
-        break;
-      case 0x6b: // 1.8 (107)
-        write(packetId);
-        write(in.readShort());
-        copyItem();
-        break;
-      case 0x6c: // 1.9 (108)
-        write(packetId);
-        write(in.readByte());
-        write(in.readByte());
-        break;
-      case (byte) 0x82: // Update Sign
-        write(packetId);
-        write(in.readInt());
-        write(in.readShort());
-        write(in.readInt());
-        write(readUTF16());
-        write(readUTF16());
-        write(readUTF16());
-        write(readUTF16());
-        break;
-      case (byte) 0x83: // Map data
-        write(packetId);
-        write(in.readShort());
-        write(in.readShort());
-        byte length = in.readByte();
-        write(length);
-        copyNBytes(0xff & length);
-        break;
-      case (byte) 0xc3: // BukkitContrib
-        write(packetId);
-        write(in.readInt());
-        copyNBytes(write(in.readInt()));
-        break;
-      case (byte) 0xc8: // Statistic
-        write(packetId);
-        copyNBytes(5);
-        break;
-      case (byte) 0xc9: // (201) 1.8, playerList
-        write(packetId);
-        write(readUTF16());
-        write(in.readByte());
-        write(in.readShort());
-        break;
-      case (byte) 0xd3: // Red Power (mod by Eloraam)
-        write(packetId);
-        copyNBytes(1);
-        copyVLC();
-        copyVLC();
-        copyVLC();
-        copyNBytes((int) copyVLC());
-        break;
-      case (byte) 0xe6: // ModLoaderMP by SDK
-        write(packetId);
-        write(in.readInt()); // mod
-        write(in.readInt()); // packet id
-        copyNBytes(write(in.readInt()) * 4); // ints
-        copyNBytes(write(in.readInt()) * 4); // floats
-        int sizeString = write(in.readInt()); // strings
-        for (int i = 0; i < sizeString; i++) {
-          copyNBytes(write(in.readInt()));
-        }
-        break;
-      case (byte) 0xfa:
-        write(packetId);
-        write(readUTF16());
-        short arrayLength = in.readShort();
-        write(arrayLength);
-        copyNBytes(0xff & arrayLength);
-        break;
-      case (byte) 0xfe: // 1.8, poll server status (254)
-        write(packetId);
-        break;
       case (byte) 0xff: // Disconnect/Kick
         // server list answer 'serverText§playerOnline§maxPlayers'
         write(packetId);
         String reason = readUTF16();
         if (reason.contains("\u00a7")) {
           reason = String.format("%s\u00a7%s\u00a7%s",
-                                 server.config.properties.get("serverDescription"),
+                                 server.settings.serverDescription,
                                  server.playerList.size(),
-                                 server.config.properties.getInt("maxPlayers"));
+                                 server.settings.maxPlayers);
         }
         write(reason);
         if (reason.startsWith("Took too long")) {
@@ -959,53 +753,33 @@ public class StreamTunnel {
         player.close();
         break;
       default:
-        if (EXPENSIVE_DEBUG_LOGGING) {
+        if (Packets.isKnown(packetId)) {
+          copyPacket(packetId);
+        } else if (EXPENSIVE_DEBUG_LOGGING) {
           while (true) {
             skipNBytes(1);
             flushAll();
           }
         } else {
-          if (lastPacket != null) {
+          if (lastPacket != NO_PACKET) {
             throw new IOException("Unable to parse unknown " + streamType
-                + " packet 0x" + Integer.toHexString(packetId) + " for player "
+                + " packet 0x" + Integer.toHexString(0xff & packetId) + " for player "
                 + player.getName() + " (after 0x" + Integer.toHexString(lastPacket));
           } else {
             throw new IOException("Unable to parse unknown " + streamType
-                + " packet 0x" + Integer.toHexString(packetId) + " for player "
+                + " packet 0x" + Integer.toHexString(0xff & packetId) + " for player "
                 + player.getName());
           }
         }
     }
     packetFinished();
-    lastPacket = (packetId == 0x00) ? lastPacket : packetId;
+    lastPacket = (packetId == 0x00) ? lastPacket : 0xff & packetId;
   }
 
-  private void copyItem() throws IOException {
-    short id;
-    if ((id = write(in.readShort())) > 0) {
-      write(in.readByte());
-      write(in.readShort());
-      if (ENCHANTABLE.contains(id)) {
-        short length;
-        if ((length = write(in.readShort())) > 0) {
-          copyNBytes(length);
-        }
-      }
-    }
-  }
-
-  private long copyVLC() throws IOException {
-    long value = 0;
-    int shift = 0;
-    while (true) {
-      int i = write(in.readByte());
-      value |= (i & 0x7F) << shift;
-      if ((i & 0x80) == 0) {
-        break;
-      }
-      shift += 7;
-    }
-    return value;
+  // for packets the proxy doesn't look into
+  private void copyPacket(byte packetId) throws IOException {
+    write(packetId);
+    Packets.walk(packetId, copier);
   }
 
   private String readUTF16() throws IOException {
@@ -1021,11 +795,10 @@ public class StreamTunnel {
     Chest adjacentChest = server.data.chests.adjacentChest(coordinate);
     if (player.isAttemptLock() || adjacentChest != null && !adjacentChest.isOpen()) {
       if (adjacentChest != null && !adjacentChest.isOpen()) {
-        server.data.chests.giveLock(adjacentChest.owner, coordinate, adjacentChest.name);
+        server.data.chests.giveLock(adjacentChest.owner(), coordinate, adjacentChest.name());
       } else {
         if (adjacentChest != null) {
-          adjacentChest.lock(player);
-          adjacentChest.name = player.nextChestName();
+          server.data.chests.giveLock(player, adjacentChest.coordinate, player.nextChestName());
         }
         server.data.chests.giveLock(player, coordinate, player.nextChestName());
       }
@@ -1034,7 +807,6 @@ public class StreamTunnel {
     } else if (!server.data.chests.isChest(coordinate)) {
       server.data.chests.addOpenChest(coordinate);
     }
-    server.data.save();
   }
 
   private void copyPlayerLocation() throws IOException {
@@ -1043,6 +815,7 @@ public class StreamTunnel {
     double stance = in.readDouble();
     double z = in.readDouble();
     player.position.updatePosition(x, y, z, stance);
+    server.playerGrid.update(player);
     write(x);
     write(y);
     write(stance);
@@ -1057,45 +830,6 @@ public class StreamTunnel {
     write(pitch);
   }
 
-  private void copyUnknownBlob() throws IOException {
-    byte unknown = in.readByte();
-    write(unknown);
-
-    while (unknown != 0x7f) {
-      int type = (unknown & 0xE0) >> 5;
-
-      switch (type) {
-        case 0:
-          write(in.readByte());
-          break;
-        case 1:
-          write(in.readShort());
-          break;
-        case 2:
-          write(in.readInt());
-          break;
-        case 3:
-          write(in.readFloat());
-          break;
-        case 4:
-          write(readUTF16());
-          break;
-        case 5:
-          write(in.readShort());
-          write(in.readByte());
-          write(in.readShort());
-          break;
-        case 6:
-          write(in.readInt());
-          write(in.readInt());
-          write(in.readInt());
-      }
-
-      unknown = in.readByte();
-      write(unknown);
-    }
-  }
-
   private byte write(byte b) throws IOException {
     out.writeByte(b);
     return b;
@@ -1155,65 +889,46 @@ public class StreamTunnel {
     out.write(buffer, 0, bytes % buffer.length);
   }
 
-  private void kick(String reason) throws IOException {
-    write((byte) 0xff);
-    write(reason);
-    packetFinished();
+  private long consumed() {
+    if (channelInput != null) {
+      return channelInput.consumed();
+    }
+    return input.consumed();
   }
 
-  private String getLastColorCode(String message) {
-    String colorCode = "";
-    int lastIndex = message.lastIndexOf('\u00a7');
-    if (lastIndex != -1 && lastIndex + 1 < message.length()) {
-      colorCode = message.substring(lastIndex, lastIndex + 2);
+  // like copyNBytes, but skips the intermediate buffer where it can
+  private void passNBytes(int bytes) throws IOException {
+    if (EXPENSIVE_DEBUG_LOGGING || bytes < 0) {
+      copyNBytes(bytes);
+    } else if (channelInput != null) {
+      channelInput.passTo(channelOutput, bytes);
+    } else {
+      input.passTo(output, bytes);
     }
+  }
 
-    return colorCode;
+  private void kick(String reason) throws IOException {
+    write((byte) 0xff);
+    write(reason);
+    packetFinished();
   }
 
   private void sendMessage(String message) throws IOException {
-    if (message.length() > 0) {
-      if (message.length() > MESSAGE_SIZE) {
-        int end = MESSAGE_SIZE - 1;
-        while (end > 0 && message.charAt(end) != ' ') {
-          end--;
-        }
-        if (end == 0) {
-          end = MESSAGE_SIZE;
-        } else {
-          end++;
-        }
-
-        if (end > 0 && message.charAt(end) == '\u00a7') {
-          end--;
-        }
-
-        String firstPart = message.substring(0, end);
-        sendMessagePacket(firstPart);
-        sendMessage(getLastColorCode(firstPart) + message.substring(end));
-      } else {
-        int end = message.length();
-        if (message.charAt(end - 1) == '\u00a7') {
-          end--;
-        }
-        sendMessagePacket(message.substring(0, end));
-      }
-    }
+    sendMessage(EncodedMessage.encode(message));
   }
 
-  private void sendMessagePacket(String message) throws IOException {
-    if (message.length() > MESSAGE_SIZE) {
-      System.out.println("[SimpleServer] Invalid message size: " + message);
-      return;
-    }
-    if (message.length() > 0) {
-      write((byte) 0x03);
-      write(message);
+  private void sendMessage(EncodedMessage message) throws IOException {
+    message.writeTo(out);
+    for (int i = message.packetCount(); i > 0; i--) {
       packetFinished();
     }
   }
 
   private void packetFinished() throws IOException {
+    if (flushCounter.pending() == 0) {
+      firstUnflushed = System.nanoTime();
+    }
+    flushCounter.packet();
     if (EXPENSIVE_DEBUG_LOGGING) {
       inputDumper.packetFinished();
       outputDumper.packetFinished();
@@ -1223,6 +938,7 @@ public class StreamTunnel {
   private void flushAll() throws IOException {
     try {
       ((OutputStream) out).flush();
+      flushCounter.flushed();
     } finally {
       if (EXPENSIVE_DEBUG_LOGGING) {
         inputDumper.flush();
@@ -1230,54 +946,91 @@ public class StreamTunnel {
     }
   }
 
-  private final class Tunneler extends Thread {
-    @Override
-    public void run() {
-      try {
-        while (run) {
-          lastRead = System.currentTimeMillis();
-
-          try {
-            handlePacket();
-
-            if (isServerTunnel) {
-              while (player.hasMessages()) {
-                sendMessage(player.getMessage());
-              }
-            } else {
-              while (player.hasForwardMessages()) {
-                sendMessage(player.getForwardMessage());
-              }
-            }
-
-            flushAll();
-          } catch (IOException e) {
-            if (run && !player.isRobot()) {
-              System.out.println("[SimpleServer] " + e);
-              System.out.print("[SimpleServer] " + streamType
-                  + " error handling traffic for " + player.getIPAddress());
-              if (lastPacket != null) {
-                System.out.print(" (" + Integer.toHexString(lastPacket) + ")");
-              }
-              System.out.println();
-            }
-            break;
-          }
-        }
+  // with coalesceFlushes, only flush once nothing else is about to be sent
+  private boolean shouldFlush() throws IOException {
+    return input.available() == 0
+        || output.pending() >= coalesceBytes
+        || System.nanoTime() - firstUnflushed >= coalesceNanos;
+  }
 
+  private final class Tunneler implements Runnable {
+    public void run() {
+      while (run) {
         try {
-          if (player.isKicked()) {
-            kick(player.getKickMsg());
+          tunnelPacket();
+          if (!coalesceFlushes || shouldFlush()) {
+            flushAll();
           }
-          flushAll();
         } catch (IOException e) {
+          reportError(e);
+          break;
         }
-      } finally {
-        if (EXPENSIVE_DEBUG_LOGGING) {
-          inputDumper.cleanup();
-          outputDumper.cleanup();
-        }
       }
+
+      finish();
+    }
+  }
+
+  private final class Copier implements Packets.Cursor {
+    public byte readByte() throws IOException {
+      return write(in.readByte());
+    }
+
+    public short readShort() throws IOException {
+      return write(in.readShort());
+    }
+
+    public int readInt() throws IOException {
+      return write(in.readInt());
+    }
+
+    public void bytes(int count) throws IOException {
+      passNBytes(count);
+    }
+  }
+
+  /*
+   * Sits below the read buffer, so it sees every read that goes to the
+   * socket. Coalesced output is flushed before one that would wait, or it
+   * could sit there until the rest of a packet arrives.
+   */
+  private final class FlushingInputStream extends FilterInputStream {
+    private FlushingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      flushBeforeBlocking();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      flushBeforeBlocking();
+      return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      flushBeforeBlocking();
+      return super.skip(n);
+    }
+
+    private void flushBeforeBlocking() throws IOException {
+      if (coalesceFlushes && output.pending() > 0 && in.available() == 0) {
+        flushAll();
+      }
+    }
+  }
+
+  private static final class PendingOutputStream extends BufferedOutputStream {
+    private PendingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    private int pending() {
+      return count;
     }
   }
 }
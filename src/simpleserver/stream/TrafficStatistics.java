@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import simpleserver.Player;
+
+/*
+ * Server-wide packet statistics. Tunnels keep their own counters while they
+ * run and hand them over here when they finish, so the lock is only taken
+ * when a tunnel opens or closes and when somebody asks for the totals.
+ */
+public class TrafficStatistics {
+  private static final int REPORT_LINES = 10;
+
+  private final Set<StreamTunnel> tunnels = new HashSet<StreamTunnel>();
+  private final PacketStatistics serverTotal = new PacketStatistics();
+  private final PacketStatistics playerTotal = new PacketStatistics();
+
+  synchronized void opened(StreamTunnel tunnel) {
+    tunnels.add(tunnel);
+  }
+
+  synchronized void closed(StreamTunnel tunnel) {
+    if (tunnels.remove(tunnel)) {
+      total(tunnel.isServerTunnel()).add(tunnel.packetStatistics());
+    }
+  }
+
+  /*
+   * Everything tunnelled so far, from the server (to the clients) or from the
+   * clients (to the server).
+   */
+  public synchronized PacketStatistics total(boolean fromServer) {
+    PacketStatistics total = new PacketStatistics();
+    total.add(fromServer ? serverTotal : playerTotal);
+    for (StreamTunnel tunnel : tunnels) {
+      if (tunnel.isServerTunnel() == fromServer) {
+        total.add(tunnel.packetStatistics());
+      }
+    }
+    return total;
+  }
+
+  public List<String> report() {
+    List<String> lines = new ArrayList<String>();
+    report(lines, "Server to clients", total(true));
+    report(lines, "Clients to server", total(false));
+    return lines;
+  }
+
+  public List<String> report(Player player) {
+    List<String> lines = new ArrayList<String>();
+    StreamTunnel serverToClient = player.serverTunnel();
+    StreamTunnel clientToServer = player.clientTunnel();
+    if (serverToClient != null) {
+      report(lines, "Server to " + player.getName(), serverToClient.packetStatistics());
+      lines.add("  " + serverToClient.flushCounter());
+    }
+    if (clientToServer != null) {
+      report(lines, player.getName() + " to server", clientToServer.packetStatistics());
+      lines.add("  " + clientToServer.flushCounter());
+    }
+    return lines;
+  }
+
+  private void report(List<String> lines, String title,
+                      PacketStatistics statistics) {
+    lines.add(String.format("%s: %d packets, %s", title,
+                            statistics.totalCount(),
+                            PacketStatistics.formatBytes(statistics.totalBytes())));
+    for (String line : statistics.report(REPORT_LINES)) {
+      lines.add("  " + line);
+    }
+  }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Runs the tunnels of all players on a few selector threads instead of two
+ * blocking threads (plus a watchdog) per player. Packets whose handlers may
+ * block (logins with their authentication requests, chat commands, chest and
+ * block changes that write simpleserver's data, disconnects that save the
+ * player) are handed to a worker
+ * together with whatever follows them, so they never stall the selector.
+ */
+public class TunnelSelector {
+  private static final int SELECT_TIMEOUT = 1000;
+  private static final int WATCHDOG_INTERVAL = 2000;
+  private static final int MAXIMUM_PACKET_SIZE = 16 * 1024 * 1024;
+
+  private final EventLoop[] loops;
+  private final ExecutorService workers;
+  private int next = 0;
+
+  public TunnelSelector(int threads, ThreadFactory workerThreads) throws IOException {
+    workers = Executors.newCachedThreadPool(workerThreads);
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    loops = new EventLoop[threads];
+    for (int i = 0; i < threads; i++) {
+      loops[i] = new EventLoop();
+      loops[i].setName("TunnelSelector-" + i);
+      loops[i].start();
+    }
+  }
+
+  public void register(SocketChannel client, SocketChannel backend,
+                       StreamTunnel serverToClient, StreamTunnel clientToServer,
+                       Runnable closeHandler) throws IOException {
+    client.configureBlocking(false);
+    backend.configureBlocking(false);
+
+    Connection connection = new Connection(client, backend, serverToClient,
+                                           clientToServer, closeHandler, workers);
+    EventLoop loop;
+    synchronized (this) {
+      loop = loops[next];
+      next = (next + 1) % loops.length;
+    }
+    loop.add(connection);
+  }
+
+  public void stop() {
+    for (EventLoop loop : loops) {
+      loop.shutdown();
+    }
+    workers.shutdown();
+  }
+
+  // packets whose handlers may block, by the direction they travel in
+  private static boolean blocks(byte packetId, boolean fromClient) {
+    switch (packetId) {
+      case 0x01: // Login: authentication
+      case 0x02: // Handshake: authentication
+      case 0x0e: // Player Digging: chests
+      case 0x0f: // Player Block Placement: chests
+      case 0x64: // Open Window: chests
+        return true;
+      case (byte) 0xff: // Disconnect: closing the player saves its data
+        return true;
+      case 0x03: // Chat Message: commands
+        return fromClient;
+      case 0x35: // Block Change: locks placed chests
+        return !fromClient;
+      default:
+        return false;
+    }
+  }
+
+  private static final class Direction {
+    private final StreamTunnel tunnel;
+    private final SocketChannel source;
+    private final SocketChannel sink;
+    private final ByteBufferInputStream input;
+    private final ByteBufferOutputStream output;
+    private final PacketFramer framer = new PacketFramer();
+    private final boolean fromClient;
+
+    // a worker owns the buffers; only touched by the selector thread
+    private boolean busy;
+    // set by the worker, read once it handed the direction back
+    private Exception error;
+
+    private Direction(StreamTunnel tunnel, SocketChannel source,
+                      SocketChannel sink, boolean fromClient) {
+      this.tunnel = tunnel;
+      this.source = source;
+      this.sink = sink;
+      this.fromClient = fromClient;
+      input = tunnel.channelInput();
+      output = tunnel.channelOutput();
+    }
+
+    // returns false if a blocking packet was read, which handle() must get to on a worker
+    private boolean read() throws IOException {
+      ByteBuffer buffer = input.buffer();
+      if (source.read(buffer) < 0) {
+        throw new EOFException("Connection closed");
+      }
+
+      buffer.flip();
+      return handle(false);
+    }
+
+    private boolean handle(boolean onWorker) throws IOException {
+      ByteBuffer buffer = input.buffer();
+      while (tunnel.isRunning()) {
+        int length = framer.frame(buffer);
+        if (length < 0) {
+          break;
+        }
+        if (!onWorker && blocks(buffer.get(buffer.position()), fromClient)) {
+          return false;
+        }
+
+        int end = buffer.position() + length;
+        int limit = buffer.limit();
+        buffer.limit(end);
+        try {
+          tunnel.tunnelPacket();
+        } finally {
+          buffer.limit(limit);
+          buffer.position(end);
+        }
+      }
+      buffer.compact();
+      tunnel.flushCounter().flushed();
+
+      if (!buffer.hasRemaining()) {
+        if (buffer.capacity() >= MAXIMUM_PACKET_SIZE) {
+          throw new IOException("Packet exceeds " + MAXIMUM_PACKET_SIZE + " bytes");
+        }
+        input.grow(MAXIMUM_PACKET_SIZE);
+      }
+      return true;
+    }
+
+    private void write() throws IOException {
+      if (!output.isEmpty()) {
+        output.writeTo(sink);
+      }
+    }
+  }
+
+  private static final class Connection {
+    private final SocketChannel client;
+    private final SocketChannel backend;
+    private final Direction serverToClient;
+    private final Direction clientToServer;
+    private final Runnable closeHandler;
+    private final Executor workers;
+
+    private EventLoop loop;
+    private SelectionKey clientKey;
+    private SelectionKey backendKey;
+    private boolean closed = false;
+    // close() was called while a worker was busy with one of the directions
+    private boolean closing = false;
+
+    private Connection(SocketChannel client, SocketChannel backend,
+                       StreamTunnel serverToClient,
+                       StreamTunnel clientToServer, Runnable closeHandler,
+                       Executor workers) {
+      this.client = client;
+      this.backend = backend;
+      this.serverToClient = new Direction(serverToClient, backend, client, false);
+      this.clientToServer = new Direction(clientToServer, client, backend, true);
+      this.closeHandler = closeHandler;
+      this.workers = workers;
+    }
+
+    private void register(EventLoop loop) throws ClosedChannelException {
+      this.loop = loop;
+      clientKey = client.register(loop.selector, SelectionKey.OP_READ, this);
+      backendKey = backend.register(loop.selector, SelectionKey.OP_READ, this);
+    }
+
+    private void handle(SelectionKey key) {
+      Direction reading = (key == clientKey) ? clientToServer : serverToClient;
+      Direction writing = (key == clientKey) ? serverToClient : clientToServer;
+      Direction current = reading;
+
+      try {
+        if (key.isReadable() && !reading.busy) {
+          if (reading.read()) {
+            reading.write();
+          } else {
+            offload(reading);
+          }
+        }
+        if (key.isValid() && key.isWritable() && !writing.busy) {
+          current = writing;
+          writing.write();
+        }
+      } catch (IOException e) {
+        current.tunnel.reportError(e);
+        close();
+        return;
+      } catch (RuntimeException e) {
+        current.tunnel.reportError(e);
+        close();
+        return;
+      }
+
+      updateInterest();
+    }
+
+    private void offload(final Direction direction) {
+      direction.busy = true;
+      workers.execute(new Runnable() {
+        public void run() {
+          try {
+            direction.handle(true);
+          } catch (IOException e) {
+            direction.error = e;
+          } catch (RuntimeException e) {
+            direction.error = e;
+          } finally {
+            loop.resume(new Runnable() {
+              public void run() {
+                resumed(direction);
+              }
+            });
+          }
+        }
+      });
+    }
+
+    // back on the selector thread once the worker is done
+    private void resumed(Direction direction) {
+      direction.busy = false;
+      if (direction.error != null) {
+        direction.tunnel.reportError(direction.error);
+        close();
+        return;
+      }
+      if (closing) {
+        close();
+        return;
+      }
+
+      try {
+        direction.write();
+      } catch (IOException e) {
+        direction.tunnel.reportError(e);
+        close();
+        return;
+      }
+      updateInterest();
+    }
+
+    // stop reading from a side while the other one can't keep up
+    private void updateInterest() {
+      try {
+        clientKey.interestOps(interest(clientToServer, serverToClient));
+        backendKey.interestOps(interest(serverToClient, clientToServer));
+      } catch (CancelledKeyException e) {
+        close();
+      }
+    }
+
+    private int interest(Direction reading, Direction writing) {
+      int ops = 0;
+      if (!reading.busy && reading.output.isEmpty()) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (!writing.busy && !writing.output.isEmpty()) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+      return ops;
+    }
+
+    private void check() {
+      if (!serverToClient.tunnel.isRunning() || !clientToServer.tunnel.isRunning()) {
+        close();
+      } else if (!serverToClient.tunnel.isActive() || !clientToServer.tunnel.isActive()) {
+        System.out.println("[SimpleServer] Disconnecting "
+            + client.socket().getInetAddress().getHostAddress()
+            + " due to inactivity.");
+        close();
+      }
+    }
+
+    private void close() {
+      if (closed) {
+        return;
+      }
+      // the worker owns that direction's buffers, resumed() comes back here
+      if ((serverToClient.busy || clientToServer.busy) && loop.run) {
+        closing = true;
+        return;
+      }
+      closed = true;
+
+      finish(serverToClient);
+      finish(clientToServer);
+
+      try {
+        closeHandler.run();
+      } finally {
+        if (clientKey != null) {
+          clientKey.cancel();
+        }
+        if (backendKey != null) {
+          backendKey.cancel();
+        }
+      }
+    }
+
+    private void finish(Direction direction) {
+      direction.tunnel.finish();
+      try {
+        direction.write();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private static final class EventLoop extends Thread {
+    private final Selector selector;
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+    private final Queue<Runnable> resumed = new ConcurrentLinkedQueue<Runnable>();
+    private final List<Connection> connections = new LinkedList<Connection>();
+
+    private volatile boolean run = true;
+    private long lastCheck = System.currentTimeMillis();
+
+    private EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    private void add(Connection connection) {
+      pending.add(connection);
+      selector.wakeup();
+    }
+
+    // runs the task on this loop's thread
+    private void resume(Runnable task) {
+      resumed.add(task);
+      selector.wakeup();
+    }
+
+    private void shutdown() {
+      run = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (run) {
+          try {
+            selector.select(SELECT_TIMEOUT);
+          } catch (IOException e) {
+            System.out.println("[SimpleServer] " + e);
+            break;
+          }
+
+          registerPending();
+          resumePending();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (key.isValid()) {
+              ((Connection) key.attachment()).handle(key);
+            }
+          }
+
+          if (System.currentTimeMillis() - lastCheck >= WATCHDOG_INTERVAL) {
+            checkConnections();
+            lastCheck = System.currentTimeMillis();
+          }
+        }
+      } finally {
+        registerPending();
+        for (Connection connection : connections) {
+          connection.close();
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+
+    private void resumePending() {
+      Runnable task;
+      while ((task = resumed.poll()) != null) {
+        task.run();
+      }
+    }
+
+    private void registerPending() {
+      Connection connection;
+      while ((connection = pending.poll()) != null) {
+        try {
+          connection.register(this);
+          connections.add(connection);
+        } catch (ClosedChannelException e) {
+          connection.close();
+        }
+      }
+    }
+
+    private void checkConnections() {
+      Iterator<Connection> iterator = connections.iterator();
+      while (iterator.hasNext()) {
+        Connection connection = iterator.next();
+        if (!connection.closed) {
+          connection.check();
+        }
+        if (connection.closed) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+}
@@ -44,8 +44,7 @@ public class TelnetTCP {
     }
 
     lastRead = System.currentTimeMillis();
-    t1 = new Thread() {
-      @Override
+    t1 = server.threads.start(new Runnable() {
       public void run() {
         if (testTimeout()) {
           close();
@@ -58,11 +57,10 @@ public class TelnetTCP {
           return;
         }
       }
-    };
-    t1.start();
+    }, "TelnetTimeout");
 
     try {
-      new Thread(new TelnetHandler(socket, this, server)).start();
+      server.threads.start(new TelnetHandler(socket, this, server), "TelnetHandler");
     } catch (IOException e) {
       e.printStackTrace();
       close();
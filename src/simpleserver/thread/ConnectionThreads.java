@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.thread;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Creates the threads that serve a single connection (tunnels, watchdogs,
+ * RCON/telnet handlers, bots). With useVirtualThreads they are virtual
+ * threads, which needs a JDK that has Thread.ofVirtual(); on anything older
+ * this quietly falls back to ordinary threads.
+ */
+public class ConnectionThreads implements ThreadFactory {
+  private final ThreadFactory virtualFactory;
+
+  public ConnectionThreads(boolean useVirtualThreads) {
+    ThreadFactory factory = null;
+    if (useVirtualThreads) {
+      factory = virtualThreadFactory();
+      if (factory == null) {
+        System.out.println("[SimpleServer] Virtual threads are not available on this JVM, using normal threads");
+      }
+    }
+    virtualFactory = factory;
+  }
+
+  public boolean isVirtual() {
+    return virtualFactory != null;
+  }
+
+  public Thread newThread(Runnable runnable) {
+    if (virtualFactory != null) {
+      return virtualFactory.newThread(runnable);
+    }
+    return new Thread(runnable);
+  }
+
+  public Thread newThread(Runnable runnable, String name) {
+    Thread thread = newThread(runnable);
+    thread.setName(name);
+    return thread;
+  }
+
+  public Thread start(Runnable runnable, String name) {
+    Thread thread = newThread(runnable, name);
+    thread.start();
+    return thread;
+  }
+
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Object builder = ofVirtual.invoke(null);
+      Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factory.invoke(builder);
+    } catch (Exception e) {
+      // pre-21 JDK, or a preview build without --enable-preview
+      return null;
+    }
+  }
+}
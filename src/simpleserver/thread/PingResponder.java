@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.thread;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import simpleserver.Player;
+import simpleserver.Server;
+import simpleserver.config.xml.RuntimeSettings;
+
+/*
+ * Looks at the first byte of every new connection. Server list pings (0xfe)
+ * are answered right here, everything else becomes a Player as usual, so
+ * pings no longer open a connection to the Minecraft server.
+ */
+public class PingResponder {
+  private static final int PING = 0xfe;
+  private static final byte DISCONNECT = (byte) 0xff;
+  private static final int FIRST_BYTE_TIMEOUT = 10000;
+
+  private final Server server;
+
+  private byte[] reply;
+  private int replyPlayers;
+  private int replyMaxPlayers;
+  private String replyDescription;
+
+  public PingResponder(Server server) {
+    this.server = server;
+  }
+
+  public void accept(Socket client) {
+    server.threads.start(new Sniffer(client), "PingResponder");
+  }
+
+  // 'serverText\u00a7playerOnline\u00a7maxPlayers', rebuilt when any of them changes
+  private synchronized byte[] reply() {
+    int players = server.playerList.size();
+    RuntimeSettings settings = server.settings;
+    int maxPlayers = settings.maxPlayers;
+    String description = settings.serverDescription;
+
+    if (reply == null || players != replyPlayers
+        || maxPlayers != replyMaxPlayers
+        || !description.equals(replyDescription)) {
+      String text = String.format("%s\u00a7%s\u00a7%s", description, players,
+                                  maxPlayers);
+      byte[] packet = new byte[3 + text.length() * 2];
+      packet[0] = DISCONNECT;
+      packet[1] = (byte) (text.length() >> 8);
+      packet[2] = (byte) text.length();
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        packet[3 + i * 2] = (byte) (c >> 8);
+        packet[4 + i * 2] = (byte) c;
+      }
+
+      reply = packet;
+      replyPlayers = players;
+      replyMaxPlayers = maxPlayers;
+      replyDescription = description;
+    }
+    return reply;
+  }
+
+  private final class Sniffer implements Runnable {
+    private final Socket client;
+
+    private Sniffer(Socket client) {
+      this.client = client;
+    }
+
+    public void run() {
+      String address = client.getInetAddress().getHostAddress();
+      if (server.isIPBanned(address)) {
+        new Player(client, server, new byte[0]);
+        return;
+      }
+
+      int first;
+      try {
+        client.setSoTimeout(FIRST_BYTE_TIMEOUT);
+        first = client.getInputStream().read();
+        client.setSoTimeout(0);
+      } catch (IOException e) {
+        first = -1;
+      }
+
+      if (first == PING) {
+        server.requestTracker.addRequest(address);
+        try {
+          OutputStream out = client.getOutputStream();
+          out.write(reply());
+          out.flush();
+        } catch (IOException e) {
+        }
+        close();
+      } else if (first < 0) {
+        close();
+      } else {
+        new Player(client, server, new byte[] { (byte) first });
+      }
+    }
+
+    private void close() {
+      try {
+        client.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+}
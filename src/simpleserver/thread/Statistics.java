@@ -35,7 +35,6 @@ import org.json.JSONObject;
 
 import simpleserver.Main;
 import simpleserver.Server;
-import simpleserver.nbt.WorldFile;
 
 /*
  * This class is used to collect usage statistics of all SimpleServer users. To fulfill
@@ -75,8 +74,7 @@ public class Statistics extends Thread {
   }
 
   private void getSessionId() {
-    WorldFile world = new WorldFile(server.options.get("levelName"));
-    long seed = world.seed();
+    long seed = server.world.seed();
 
     JSONObject data = new JSONObject();
     JSONObject stats = new JSONObject();